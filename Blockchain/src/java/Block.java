@@ -2,21 +2,40 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
   public static final double COINBASE = 25;
+  /** coinbase value in base units, see {@link Transaction#COIN} */
+  public static final long COINBASE_UNITS = 25 * Transaction.COIN;
+  /** easiest target, met by every hash */
+  public static final byte[] MAX_TARGET = maxTarget();
 
   private byte[] hash;
   private byte[] prevBlockHash;
   private Transaction coinbase;
   private ArrayList<Transaction> txs;
+  private MerkleTree tree;              // over coinbase and txs hashes
+  private byte[] target = MAX_TARGET;   // hash must not exceed it
+  private long nonce;
 
   /** {@code address} is the address to which the coinbase transaction would go */
   public Block(byte[] prevHash, PublicKey address) {
     prevBlockHash = prevHash;
     coinbase = new Transaction(COINBASE, address);
     txs = new ArrayList<Transaction>();
+    tree = new MerkleTree();
+    tree.add(coinbase.getHash());
+  }
+
+  /** a block paying {@code coinbase}, as received from another node */
+  public Block(byte[] prevHash, Transaction coinbase) {
+    prevBlockHash = prevHash;
+    this.coinbase = coinbase;
+    txs = new ArrayList<Transaction>();
+    tree = new MerkleTree();
+    tree.add(coinbase.getHash());
   }
 
   public Transaction getCoinbase() {
@@ -41,6 +60,119 @@ public class Block {
 
   public void addTransaction(Transaction tx) {
     txs.add(tx);
+    if (tree.size() == txs.size()) tree.add(tx.getHash());
+  }
+
+  /** Replace the transaction at {@code index} with {@code tx} */
+  public void setTransaction(int index, Transaction tx) {
+    txs.set(index, tx);
+    if (tree.size() == txs.size() + 1) tree.set(index + 1, tx.getHash());
+  }
+
+  /** @return 32-byte big-endian value the block hash must not exceed */
+  public byte[] getTarget() {
+    return target;
+  }
+
+  public void setTarget(byte[] target) {
+    this.target = target;
+  }
+
+  public long getNonce() {
+    return nonce;
+  }
+
+  public void setNonce(long nonce) {
+    this.nonce = nonce;
+  }
+
+  /** @return true if the block's hash meets its target */
+  public boolean hasProofOfWork() {
+    return hash != null && meetsTarget(hash, target);
+  }
+
+  /** @return true if {@code hash} is at most {@code target}, both big-endian */
+  public static boolean meetsTarget(byte[] hash, byte[] target) {
+    if (hash.length != target.length) return false;
+    for (int i = 0; i < hash.length; i++) {
+      int h = hash[i] & 0xff, t = target[i] & 0xff;
+      if (h != t) return h < t;
+    }
+    return true;
+  }
+
+  /**
+   * @return target requiring {@code bits} leading zero bits of the hash,
+   *         expected to take 2^bits attempts
+   */
+  public static byte[] targetForBits(int bits) {
+    byte[] t = maxTarget();
+    for (int i = 0; i < bits && i < 8 * t.length; i++)
+      t[i / 8] &= (byte) ~(0x80 >>> (i % 8));
+    return t;
+  }
+
+  private static byte[] maxTarget() {
+    byte[] t = new byte[32];
+    Arrays.fill(t, (byte) 0xff);
+    return t;
+  }
+
+  /**
+   * @return root of the Merkle tree over the hashes of the coinbase
+   *         followed by the transactions, which the block hash commits to
+   */
+  public byte[] getMerkleRoot() {
+    return merkleTree().getRoot();
+  }
+
+  /**
+   * @return proof that the transaction with hash {@code txHash} is in the
+   *         block, or null if it isn't. Check it against
+   *         {@link #getMerkleRoot} with {@link MerkleTree#verify}.
+   */
+  public MerkleTree.Proof getInclusionProof(byte[] txHash) {
+    MerkleTree t = merkleTree();
+    int i = t.indexOf(txHash);
+    return i < 0 ? null : t.getProof(i);
+  }
+
+  // the cached tree, rebuilt if transactions were added or removed through
+  // getTransactions(); replacements there are only caught by rebuildMerkleTree
+  private MerkleTree merkleTree() {
+    if (tree.size() != txs.size() + 1) rebuildMerkleTree();
+    return tree;
+  }
+
+  // the tree over the current coinbase and txs, replacing the cached one
+  private MerkleTree rebuildMerkleTree() {
+    ArrayList<byte[]> leaves = new ArrayList<>(txs.size() + 1);
+    leaves.add(coinbase.getHash());
+    for (Transaction t : txs) leaves.add(t.getHash());
+    tree = new MerkleTree(leaves);
+    return tree;
+  }
+
+  /**
+   * @return the data hashed by {@link #finalize}: parent hash, Merkle root,
+   *         target and nonce
+   */
+  public byte[] getHeader() {
+    byte[] prefix = getHeaderPrefix();
+    byte[] header = Arrays.copyOf(prefix, prefix.length + Long.BYTES);
+    for (int i = 0; i < Long.BYTES; i++)
+      header[prefix.length + i] = (byte) (nonce >>> (8 * (Long.BYTES - 1 - i)));
+    return header;
+  }
+
+  /** @return the header up to the nonce, which doesn't change while mining */
+  public byte[] getHeaderPrefix() {
+    byte[] prev = prevBlockHash == null ? new byte[0] : prevBlockHash;
+    byte[] root = getMerkleRoot();
+    byte[] prefix = Arrays.copyOf(prev, prev.length + root.length + target.length);
+    System.arraycopy(root, 0, prefix, prev.length, root.length);
+    System.arraycopy(target, 0, prefix, prev.length + root.length, target.length);
+    return prefix;
   }
 
   public byte[] getRawBlock() {
@@ -61,12 +193,36 @@ public class Block {
   }
 
   public void finalize() {
+    hash = computeHash();
+  }
+
+  /**
+   * @return hash of the block's header, as set by finalize. The Merkle root
+   *         is rebuilt from the transactions, so a block changed through
+   *         {@link #getTransactions} can't keep a stale commitment.
+   */
+  public byte[] computeHash() {
+    rebuildMerkleTree();
     try {
       MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(getRawBlock());
-      hash = md.digest();
+      md.update(getHeader());
+      return md.digest();
     } catch (NoSuchAlgorithmException x) {
       x.printStackTrace(System.err);
+      return null;
     }
   }
+
+  /**
+   * @return true if the hashes of the block and of each of its transactions
+   *         match their contents
+   */
+  public boolean isHashConsistent() {
+    if (!Arrays.equals(coinbase.getHash(), coinbase.computeHash()))
+      return false;
+    for (Transaction t : txs)
+      if (!Arrays.equals(t.getHash(), t.computeHash()))
+        return false;
+    return Arrays.equals(hash, computeHash());
+  }
 }
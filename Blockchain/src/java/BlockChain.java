@@ -1,27 +1,75 @@
+import java.security.PublicKey;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory as it
 // would cause a memory overflow.
+//
+// Safe for many readers and one writer at a time: methods that change the
+// chain or its pools are synchronized on the chain, and the head is
+// published as an immutable BlockNode through a volatile field, so reads of
+// the head, its coins and kept blocks take no lock.
 
 public class BlockChain {
   public static final int CUT_OFF_AGE = 10;
+  public static final int SEEN_BLOCKS = 1000;     // recent block hashes kept
+  public static final int SEEN_TXS = 50000;       // recent rejected tx hashes kept
+
+  // reasons a block is rejected
+  public static final String REJECT_NO_HASH = "missing hash";
+  public static final String REJECT_NO_PARENT = "unknown parent";
+  public static final String REJECT_TOO_OLD = "too old";
+  public static final String REJECT_INVALID_TXS = "invalid transactions";
+  public static final String REJECT_BAD_POW = "insufficient proof of work";
+
   private TransactionPool txPool;       // transactions to build next block
-  private BlockNode hd;                 // head of chain
-  private Map<byte[],BlockNode> chain;  // represent blockchain
-
-  // store Block on the chain
-  private class BlockNode {
-    int height;
-    Block block;
-    UTXOPool pool;
-    public BlockNode(int h, Block b, UTXOPool p) {
+  private volatile BlockNode hd;        // head of chain
+  private Map<ByteArrayWrapper,BlockNode> chain;  // represent blockchain
+  private BlockValidator validator;     // validates block transactions
+  private OrphanPool orphans;           // transactions missing parents
+  private SeenCache seenBlocks;         // recently accepted/rejected blocks
+  private SeenCache seenTxs;            // recently rejected transactions
+  private BlockTemplate template;       // candidate next block, if mining
+  private volatile byte[] target = Block.MAX_TARGET;  // hardest target blocks may use
+
+  /**
+   * A block on the chain with its height and the coins unspent after it.
+   * Never modified once on the chain, so it can be read without locking.
+   */
+  public static final class BlockNode {
+    private final int height;
+    private final Block block;
+    private final UTXOPool pool;
+    private final UTXOPool view;          // handed out, read-only
+
+    BlockNode(int h, Block b, UTXOPool p) {
       height = h;
       block = b;
       pool = p;
+      view = p.readOnlyView();
+    }
+
+    public int getHeight() {
+      return height;
     }
+
+    public Block getBlock() {
+      return block;
+    }
+
+    /** @return the coins unspent after the block, read-only */
+    public UTXOPool getUTXOPool() {
+      return view;
+    }
+  }
+
+  /** Get the maximum height block with its height and coins, as one snapshot */
+  public BlockNode getHead() {
+    return hd;
   }
 
   /** Get the maximum height block */
@@ -29,19 +77,159 @@ public class BlockChain {
     return hd.block;
   }
 
-  /** Get the UTXOPool for mining a new block on top of max height block */
+  /** Get the target new blocks have to meet */
+  public byte[] getTarget() {
+    return target;
+  }
+
+  /** Require new blocks to meet {@code target} or a harder one */
+  public void setTarget(byte[] target) {
+    this.target = target;
+  }
+
+  /** Get the block with hash {@code hash}, if it is still kept, or null */
+  public Block getBlock(byte[] hash) {
+    BlockNode n = hash == null ? null : chain.get(ByteArrayWrapper.wrap(hash));
+    return n == null ? null : n.block;
+  }
+
+  /**
+   * Get the UTXOPool for mining a new block on top of max height block,
+   * read-only: copy it to make changes
+   */
   public UTXOPool getMaxHeightUTXOPool() {
-    return hd.pool;
+    return hd.view;
   }
 
-  /** Get the transaction pool to mine a new block */
+  /**
+   * Get the transaction pool to mine a new block. It is thread-safe, but
+   * only consistent with the head under this chain's monitor.
+   */
   public TransactionPool getTransactionPool() {
     return txPool;
   }
 
-  /** Add a transaction to the transaction pool */
+  /**
+   * Get the candidate block on the max height block paying {@code miner},
+   * with at most {@code maxBytes} of encoded transactions. It is kept up to
+   * date as transactions are added and the head moves, under this chain's
+   * monitor.
+   */
+  public synchronized BlockTemplate getBlockTemplate(PublicKey miner, long maxBytes) {
+    if (template == null || !template.getMiner().equals(miner)
+        || template.getMaxBytes() != maxBytes)
+      template = new BlockTemplate(miner, maxBytes);
+    if (!template.isCurrent(hd.block.getHash(), txPool))
+      template.reset(hd.block.getHash(), txPool);
+    return template;
+  }
+
+  /**
+   * Seal the candidate block on the max height block paying {@code miner},
+   * see {@link #getBlockTemplate}, with the target set and finalized. Its
+   * parent and transactions are taken from one state of the chain.
+   */
+  public synchronized Block sealBlockTemplate(PublicKey miner, long maxBytes) {
+    Block b = getBlockTemplate(miner, maxBytes).seal();
+    b.setTarget(target);
+    b.finalize();
+    return b;
+  }
+
+  /** Get the transactions waiting on unknown parents */
+  public OrphanPool getOrphanPool() {
+    return orphans;
+  }
+
+  /**
+   * Add a transaction to the transaction pool if it is valid against the
+   * coins at the head and those created by pooled transactions, and doesn't
+   * spend a coin another pooled transaction spends. If it spends outputs of
+   * unknown transactions it waits in the orphan pool until they arrive.
+   */
   public void addTransaction(Transaction tx) {
-    txPool.addTransaction(tx);
+    // already pooled, or rejected for good recently. Accepted hashes aren't
+    // cached: an evicted, expired or reorged-out transaction may come back,
+    // and a confirmed one fails the coin check before any signature
+    if (seenTxs.rejectReason(tx.getHash()) != null
+        || txPool.contains(tx.getHash()))
+      return;
+    // verify before taking the lock, so callers on many threads verify in
+    // parallel. An outpoint's output never changes, so the signatures hold
+    // as long as the coins are still there when the transaction is pooled
+    TxValidator.Stage pre = TxValidator.check(tx, txPool.coinsFor(hd.pool, null),
+                                              validator.getWorkers());
+    if (pre != null && pre != TxValidator.Stage.UTXO) {
+      if (Arrays.equals(tx.getHash(), tx.computeHash()))
+        seenTxs.markRejected(tx.getHash(), pre.name());
+      return;
+    }
+    ArrayDeque<Transaction> work = new ArrayDeque<>();
+    work.add(tx);
+    synchronized (this) {
+      admit(work, pre == null ? tx : null);
+    }
+  }
+
+  /**
+   * Add a transaction reloaded from a snapshot, whose signatures were
+   * verified by the loader, keeping the time it was first added. It is
+   * dropped if it was confirmed or its coins were spent since.
+   * @return true if it was pooled
+   */
+  synchronized boolean restoreTransaction(Transaction tx, long time) {
+    if (seenTxs.rejectReason(tx.getHash()) != null
+        || txPool.contains(tx.getHash())
+        || TxValidator.checkWithoutSignatures(tx, txPool.coinsFor(hd.pool, null)) != null
+        || !txPool.addTransaction(tx, hd.pool, time))
+      return false;
+    if (template != null) template.offer(tx, txPool);
+    return true;
+  }
+
+  // add transactions to the pool, promoting orphans whose parents arrive;
+  // the signatures of verified are already checked
+  private void admit(ArrayDeque<Transaction> work, Transaction verified) {
+    long now = System.currentTimeMillis();
+    txPool.expire(now);
+    while (!work.isEmpty()) {
+      Transaction t = work.poll();
+      ArrayList<byte[]> missing = missingParents(t);
+      if (!missing.isEmpty()) {
+        orphans.add(t, missing, now);
+        continue;
+      }
+      CoinView coins = txPool.coinsFor(hd.pool, null);
+      TxValidator.Stage bad = t == verified
+        ? TxValidator.checkWithoutSignatures(t, coins)
+        : TxValidator.check(t, coins, validator.getWorkers());
+      if (bad != null) {
+        // a missing or pooled-spent coin may yet appear, other reasons are
+        // permanent once the hash is known to be the transaction's own
+        if (bad != TxValidator.Stage.UTXO
+            && Arrays.equals(t.getHash(), t.computeHash()))
+          seenTxs.markRejected(t.getHash(), bad.name());
+        continue;
+      }
+      if (!txPool.addTransaction(t, hd.pool))
+        continue;                       // over package limits, or evicted at once
+      if (template != null) template.offer(t, txPool);
+      work.addAll(orphans.removeChildrenOf(t.getHash()));
+    }
+  }
+
+  // hashes of parents of tx whose outputs are neither unspent at the head
+  // nor created by pooled transactions
+  private ArrayList<byte[]> missingParents(Transaction tx) {
+    ArrayList<byte[]> res = new ArrayList<>();
+    for (Transaction.Input in : tx.getInputs()) {
+      if (in.prevTxHash == null
+          || hd.pool.getTxOutput(in.prevTxHash, in.outputIndex) != null
+          || txPool.getTransaction(in.prevTxHash) != null)
+        continue;
+      res.add(in.prevTxHash);
+    }
+    return res;
   }
 
   // add block's coinbase UTXO to pool
@@ -58,11 +246,16 @@ public class BlockChain {
    */
   public BlockChain(Block genesisBlock) {
     txPool = new TransactionPool();
-    chain = new HashMap<>();
+    chain = new ConcurrentHashMap<>();
+    validator = new BlockValidator();
+    orphans = new OrphanPool();
+    seenBlocks = new SeenCache(SEEN_BLOCKS);
+    seenTxs = new SeenCache(SEEN_TXS);
     // initial pool is just output from coinbase transaction
     UTXOPool pool = nextPool(genesisBlock, new UTXOPool());
     hd = new BlockNode(1, genesisBlock, pool);
-    chain.put(genesisBlock.getHash(), hd);
+    chain.put(new ByteArrayWrapper(genesisBlock.getHash()), hd);
+    seenBlocks.markAccepted(genesisBlock.getHash());
   }
 
   /**
@@ -76,53 +269,122 @@ public class BlockChain {
    * {@code height > CUT_OFF_AGE + 1}, you cannot create a new block at
    * height 2.
    * 
+   * <p> Blocks seen recently are rejected without validating them again:
+   * ones already added, and ones rejected for a reason that can't change.
+   *
    * @return true if block is successfully added
    */
   public boolean addBlock(Block block) {
-    byte[] phash = block.getPrevBlockHash();
-    if (phash == null || block.getHash() == null || !chain.containsKey(phash))
+    byte[] hash = block.getHash();
+    if (seenBlocks.contains(hash))
       return false;
+    synchronized (this) {
+      if (seenBlocks.contains(hash))    // added by another thread meanwhile
+        return false;
+      String reason = connect(block);
+      if (reason == null)
+        seenBlocks.markAccepted(hash);
+      else if ((reason == REJECT_TOO_OLD || reason == REJECT_INVALID_TXS
+                || reason == REJECT_BAD_POW)
+               && block.isHashConsistent())
+        // only remembered when the hash is really this block's, so a forged
+        // copy can't get a valid block rejected
+        seenBlocks.markRejected(hash, reason);
+      return reason == null;
+    }
+  }
 
-    BlockNode prev = chain.get(phash);
+  /**
+   * @return why the block with hash {@code hash} was rejected, if it was
+   *         recently and for good, or null
+   */
+  public String getRejectReason(byte[] hash) {
+    return seenBlocks.rejectReason(hash);
+  }
+
+  // add block to the chain, returning why it was rejected or null
+  private String connect(Block block) {
+    byte[] phash = block.getPrevBlockHash();
+    if (block.getHash() == null)
+      return REJECT_NO_HASH;
+    // the hash must be the header's and meet a target at least as hard as ours
+    if (!Block.meetsTarget(block.getTarget(), target) || !block.hasProofOfWork()
+        || !Arrays.equals(block.getHash(), block.computeHash()))
+      return REJECT_BAD_POW;
+    if (phash == null || !chain.containsKey(ByteArrayWrapper.wrap(phash)))
+      return REJECT_NO_PARENT;
+
+    BlockNode prev = chain.get(ByteArrayWrapper.wrap(phash));
     // can't be too old
     if (hd.height - CUT_OFF_AGE > prev.height)
-      return false;
+      return REJECT_TOO_OLD;
     
     // validate transactions agains available coins in parent block
     ArrayList<Transaction> tlist = block.getTransactions();
-    TxHandler handler            = new TxHandler(prev.pool);
     Transaction[] txs            = tlist.toArray(new Transaction[tlist.size()]),
-             validTxs            = handler.handleTxs(txs);
+             validTxs            = validator.validTxs(prev.pool, txs);
 
     // check all proposed transactions were accepted
     if (txs.length != validTxs.length)
-      return false;
+      return REJECT_INVALID_TXS;
 
     // remove accepted transactions
     for (Transaction t : tlist)
       txPool.removeTransaction(t.getHash());
 
     // create next pool of coins from coinbase Tx and results of validTxs
-    UTXOPool pool = nextPool(block, handler.getUTXOPool());
+    UTXOPool pool = new UTXOPool(prev.pool);
+    validator.apply(pool, validTxs);
+    pool = nextPool(block, pool);
 
     // add new block to chain
     BlockNode next = new BlockNode(prev.height+1, block, pool);
-    chain.put(block.getHash(), next);
+    chain.put(new ByteArrayWrapper(block.getHash()), next);
 
-    // update hd
-    if (next.height > hd.height) hd = next;
+    // update hd, dropping pooled transactions no longer valid on it
+    if (next.height > hd.height) {
+      BlockNode old = hd;
+      hd = next;
+      if (prev == old)
+        for (Transaction t : tlist) txPool.removeConflicts(t);
+      else
+        recheckPool();
+      if (template != null) template.reset(hd.block.getHash(), txPool);
+    }
     trimChain();
-    return true;
+
+    // promote orphans waiting on the block's transactions
+    ArrayDeque<Transaction> promoted = new ArrayDeque<>();
+    promoted.addAll(orphans.removeChildrenOf(block.getCoinbase().getHash()));
+    for (Transaction t : tlist)
+      promoted.addAll(orphans.removeChildrenOf(t.getHash()));
+    admit(promoted, null);
+    return null;
+  }
+
+  // drop pooled transactions spending coins missing at a head on another
+  // branch, in arrival order so parents are checked before children. Only
+  // coins are rechecked: balance and signatures depend on the outpoints alone
+  private void recheckPool() {
+    for (Transaction t : txPool.view()) {
+      if (!txPool.contains(t.getHash())) continue;   // dropped with a parent
+      CoinView coins = txPool.coinsFor(hd.pool, t);
+      for (Transaction.Input in : t.getInputs())
+        if (coins.getTxOutput(in.prevTxHash, in.outputIndex) == null) {
+          txPool.removeWithDescendants(t.getHash());
+          break;
+        }
+    }
   }
 
   // Only store head of chain in memory
   private void trimChain() {
     int mn = hd.height - CUT_OFF_AGE - 1;
-    ArrayList<byte[]> old = new ArrayList<>();
-    for (Map.Entry<byte[],BlockNode> e : chain.entrySet())
+    ArrayList<ByteArrayWrapper> old = new ArrayList<>();
+    for (Map.Entry<ByteArrayWrapper,BlockNode> e : chain.entrySet())
       if (e.getValue().height < mn)
         old.add(e.getKey());
 
-    for (byte[] b : old) chain.remove(b);
+    for (ByteArrayWrapper b : old) chain.remove(b);
   }
 }
@@ -1,7 +1,15 @@
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class BlockHandler {
+  /** default limit on the encoded size of created blocks' transactions */
+  public static final long DEFAULT_MAX_BLOCK_BYTES = 1_000_000;
+
   private BlockChain blockChain;
+  private long maxBlockBytes = DEFAULT_MAX_BLOCK_BYTES;
+  // read by processBlock on other threads, to cancel mining a stale head
+  private volatile Miner miner = new Miner();
 
   /** assume blockChain has the genesis block */
   public BlockHandler(BlockChain blockChain) {
@@ -16,23 +24,87 @@ public class BlockHandler {
   public boolean processBlock(Block block) {
     if (block == null)
       return false;
-    return blockChain.addBlock(block);
+    Block head = blockChain.getMaxHeightBlock();
+    boolean added = blockChain.addBlock(block);
+    // stop mining on a head that was replaced
+    if (added && blockChain.getMaxHeightBlock() != head)
+      miner.cancel();
+    return added;
+  }
+
+  /**
+   * add the block relayed as {@code cb} by {@code peer}, rebuilt from the
+   * transaction pool. Only missing transactions are fetched from the peer,
+   * and the full block if the rebuilt one doesn't match.
+   *
+   * @return true if the block is valid and has been added, false otherwise
+   */
+  public boolean processCompactBlock(CompactBlock cb, BlockHandler peer) {
+    if (cb == null)
+      return false;
+    CompactBlock.Reconstruction r = cb.reconstruct(blockChain.getTransactionPool());
+    int[] missing = r.missing();
+    if (missing.length > 0)
+      r.fill(missing, peer.getBlockTransactions(cb.getHash(), missing));
+    Block block = r.toBlock();
+    if (block == null)
+      block = peer.getBlock(cb.getHash());
+    return processBlock(block);
+  }
+
+  /** @return compact form of {@code block} for relaying */
+  public CompactBlock compact(Block block) {
+    return CompactBlock.of(block);
+  }
+
+  /** @return the block with hash {@code blockHash} if it is kept, or null */
+  public Block getBlock(byte[] blockHash) {
+    return blockChain.getBlock(blockHash);
+  }
+
+  /**
+   * @return transactions {@code indices} of the block with hash
+   *         {@code blockHash}, empty if the block isn't kept
+   */
+  public ArrayList<Transaction> getBlockTransactions(byte[] blockHash, int[] indices) {
+    ArrayList<Transaction> res = new ArrayList<>();
+    Block b = blockChain.getBlock(blockHash);
+    if (b == null)
+      return res;
+    for (int i : indices)
+      res.add(i >= 0 && i < b.getTransactions().size() ? b.getTransaction(i) : null);
+    return res;
   }
 
-  /** create a new {@code block} over the max height {@code block} */
+  /** mine created blocks with {@code miner} */
+  public void setMiner(Miner miner) {
+    this.miner = miner;
+  }
+
+  /** limit the encoded size of the transactions of created blocks */
+  public void setMaxBlockBytes(long maxBlockBytes) {
+    this.maxBlockBytes = maxBlockBytes;
+  }
+
+  /**
+   * create a new {@code block} over the max height {@code block}, from the
+   * pooled transactions paying the best fee rates that fit. The block chain
+   * keeps the candidate up to date, so it only has to be sealed, from one
+   * state of the chain, and mined to the block chain's target outside its
+   * lock. Returns null if mining is cancelled by a new head, including
+   * one that arrived after sealing, before mining started.
+   */
   public Block createBlock(PublicKey myAddress) {
-    Block parent = blockChain.getMaxHeightBlock();
-    byte[] parentHash = parent.getHash();
-    Block current = new Block(parentHash, myAddress);
-    UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-    TransactionPool txPool = blockChain.getTransactionPool();
-    TxHandler handler = new TxHandler(uPool);
-    Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-    Transaction[] rTxs = handler.handleTxs(txs);
-    for (int i = 0; i < rTxs.length; i++)
-      current.addTransaction(rTxs[i]);
-
-    current.finalize();
+    Block current = blockChain.sealBlockTemplate(myAddress, maxBlockBytes);
+    if (!current.hasProofOfWork()) {
+      Miner.Job job = miner.mine(current);
+      // processBlock only cancels searches already started
+      if (!Arrays.equals(blockChain.getMaxHeightBlock().getHash(), current.getPrevBlockHash()))
+        job.cancel();
+      current = job.join();
+      if (current == null)
+        return null;
+    }
     if (blockChain.addBlock(current))
       return current;
     else
@@ -0,0 +1,88 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Candidate block on top of the head, kept up to date so that creating a
+ * block only seals it. Admitted transactions are appended while they fit,
+ * updating the block's Merkle root incrementally, and the template is
+ * re-selected by fee rate from the pool whenever the head changes.
+ */
+public class BlockTemplate {
+  private final PublicKey miner;
+  private final long maxBytes;          // budget for the block's transactions
+  private Block block;                  // null once sealed or stale
+  private HashSet<ByteArrayWrapper> included;
+  private long bytes;
+  private long poolRemovals;            // pool removals at last sync
+
+  public BlockTemplate(PublicKey miner, long maxBytes) {
+    this.miner = miner;
+    this.maxBytes = maxBytes;
+  }
+
+  public PublicKey getMiner() {
+    return miner;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Starts a new candidate on {@code parentHash} holding the best paying
+   * transactions of {@code pool}.
+   */
+  public void reset(byte[] parentHash, TransactionPool pool) {
+    block = new Block(parentHash, miner);
+    included = new HashSet<>();
+    bytes = block.getCoinbase().rawTxLength();
+    poolRemovals = pool.removedCount();
+    List<Transaction> txs = pool.selectTransactions(maxBytes - bytes);
+    for (Transaction t : txs) append(t);
+  }
+
+  /**
+   * Appends the pooled transaction {@code tx} if it fits and its pooled
+   * parents are already in the candidate.
+   * @return true if {@code tx} was appended
+   */
+  public boolean offer(Transaction tx, TransactionPool pool) {
+    if (block == null || pool.removedCount() != poolRemovals
+        || bytes + tx.rawTxLength() > maxBytes)
+      return false;
+    for (Transaction.Input in : tx.getInputs())
+      if (in.prevTxHash != null && pool.contains(in.prevTxHash)
+          && !included.contains(ByteArrayWrapper.wrap(in.prevTxHash)))
+        return false;
+    append(tx);
+    return true;
+  }
+
+  /**
+   * @return true if the candidate is on {@code parentHash} and none of its
+   *         transactions has left {@code pool} since it was built
+   */
+  public boolean isCurrent(byte[] parentHash, TransactionPool pool) {
+    return block != null && pool.removedCount() == poolRemovals
+      && Arrays.equals(block.getPrevBlockHash(), parentHash);
+  }
+
+  /**
+   * Finalizes and hands over the candidate. The template is stale until
+   * the next {@link #reset}.
+   */
+  public Block seal() {
+    Block b = block;
+    block = null;
+    b.finalize();
+    return b;
+  }
+
+  private void append(Transaction t) {
+    block.addTransaction(t);
+    included.add(new ByteArrayWrapper(t.getHash()));
+    bytes += t.rawTxLength();
+  }
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Validates a block's transactions concurrently. Transactions are grouped
+ * into levels by the spend graph inside the block (a transaction's parents
+ * are the earlier block transactions whose outputs it claims) and each level
+ * is validated in parallel once the previous one is done.
+ *
+ * <p> The accepted transactions are always the same as those returned by
+ * {@link TxHandler#handleTxs} over the same list.
+ */
+public class BlockValidator {
+  // blocks smaller than this are validated sequentially
+  public static final int PARALLEL_THRESHOLD = 16;
+
+  private final ForkJoinPool workers;
+
+  public BlockValidator(ForkJoinPool workers) {
+    this.workers = workers;
+  }
+
+  public BlockValidator() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  public ForkJoinPool getWorkers() {
+    return workers;
+  }
+
+  /**
+   * @return the transactions of {@code txs}, in order, that
+   *         {@code new TxHandler(pool).handleTxs(txs)} would accept.
+   *         {@code pool} isn't modified.
+   */
+  public Transaction[] validTxs(UTXOPool pool, Transaction[] txs) {
+    int n = txs.length;
+    if (n < PARALLEL_THRESHOLD) return new TxHandler(pool).handleTxs(txs);
+
+    // index block transactions by hash, falling back to the sequential path
+    // for anything it would treat specially: missing or repeated hashes, or
+    // transactions whose outputs are already in the pool
+    HashMap<ByteArrayWrapper, Integer> index = new HashMap<>(2 * n);
+    for (int i = 0; i < n; i++) {
+      byte[] h = txs[i].getHash();
+      if (h == null || index.put(new ByteArrayWrapper(h), i) != null)
+        return new TxHandler(pool).handleTxs(txs);
+      for (int k = 0; k < txs[i].numOutputs(); k++)
+        if (pool.getTxOutput(h, k) != null)
+          return new TxHandler(pool).handleTxs(txs);
+    }
+
+    // spend graph: a transaction claiming outputs of a later (or its own)
+    // transaction is rejected as handleTxs would; otherwise its level is one
+    // more than its deepest parent's
+    int[][] parents = new int[n][];
+    int[] level = new int[n];
+    boolean[] early = new boolean[n];
+    int depth = 0;
+    for (int i = 0; i < n; i++) {
+      Transaction t = txs[i];
+      ArrayList<Integer> ps = new ArrayList<>();
+      for (int k = 0; k < t.numInputs(); k++) {
+        byte[] h = t.getInput(k).prevTxHash;
+        Integer j = h == null ? null : index.get(new ByteArrayWrapper(h));
+        if (j == null) continue;
+        if (j >= i) early[i] = true;
+        else {
+          ps.add(j);
+          level[i] = Math.max(level[i], level[j] + 1);
+        }
+      }
+      parents[i] = ps.stream().mapToInt(Integer::intValue).toArray();
+      depth = Math.max(depth, level[i] + 1);
+    }
+
+    // claim every spent coin, detecting coins claimed by two transactions
+    ConcurrentHashMap<UTXO, Integer> claims = new ConcurrentHashMap<>(2 * n);
+    AtomicBoolean contested = new AtomicBoolean();
+    run(IntStream.range(0, n), i -> {
+        Transaction t = txs[i];
+        for (int k = 0; k < t.numInputs(); k++) {
+          Transaction.Input in = t.getInput(k);
+          if (in.prevTxHash == null) continue;
+          Integer prev = claims.putIfAbsent(new UTXO(in.prevTxHash, in.outputIndex), i);
+          if (prev != null && prev != i) contested.set(true);
+        }
+      });
+
+    // coins available to block transactions: the pool plus every output
+    // created in the block, parents' acceptance is checked separately
+    CoinView view = (h, j) -> {
+      Transaction.Output op = pool.getTxOutput(h, j);
+      if (op != null) return op;
+      Integer p = index.get(new ByteArrayWrapper(h));
+      return p == null || j < 0 ? null : txs[p].getOutput(j);
+    };
+
+    // validate level by level, each level in parallel
+    int[][] levels = byLevel(level, depth);
+    boolean[] ok = new boolean[n];
+    for (int[] lv : levels)
+      run(IntStream.of(lv), i -> {
+          if (early[i]) return;
+          for (int p : parents[i])
+            if (!ok[p]) return;
+          ok[i] = TxValidator.isValid(txs[i], view);
+        });
+
+    // without contested coins every valid transaction is accepted, otherwise
+    // the first valid claimant in block order wins, as in handleTxs
+    boolean[] accepted = contested.get() ? resolve(txs, ok, index) : ok;
+    ArrayList<Transaction> res = new ArrayList<>();
+    for (int i = 0; i < n; i++)
+      if (accepted[i]) res.add(txs[i]);
+    return res.toArray(new Transaction[res.size()]);
+  }
+
+  /**
+   * Applies the already validated {@code txs} to {@code pool}: removes the
+   * coins they spend and adds the coins they create, shards of the pool in
+   * parallel.
+   * @return record of the changes, to disconnect the transactions again
+   */
+  public UTXODelta.Undo apply(UTXOPool pool, Transaction[] txs) {
+    return pool.applyDelta(UTXODelta.of(txs), workers);
+  }
+
+  // sequential pass over individually valid transactions, spending coins in
+  // block order
+  private static boolean[] resolve(Transaction[] txs, boolean[] ok,
+                                   HashMap<ByteArrayWrapper, Integer> index) {
+    boolean[] accepted = new boolean[txs.length];
+    HashSet<UTXO> spent = new HashSet<>();
+    for (int i = 0; i < txs.length; i++) {
+      if (!ok[i]) continue;
+      Transaction t = txs[i];
+      boolean avail = true;
+      for (int k = 0; k < t.numInputs() && avail; k++) {
+        Transaction.Input in = t.getInput(k);
+        Integer p = index.get(new ByteArrayWrapper(in.prevTxHash));
+        avail = (p == null || accepted[p])
+          && !spent.contains(new UTXO(in.prevTxHash, in.outputIndex));
+      }
+      if (!avail) continue;
+      accepted[i] = true;
+      for (int k = 0; k < t.numInputs(); k++) {
+        Transaction.Input in = t.getInput(k);
+        spent.add(new UTXO(in.prevTxHash, in.outputIndex));
+      }
+    }
+    return accepted;
+  }
+
+  // transaction indices grouped by level
+  private static int[][] byLevel(int[] level, int depth) {
+    int[] count = new int[depth];
+    for (int l : level) count[l]++;
+    int[][] res = new int[depth][];
+    for (int l = 0; l < depth; l++) res[l] = new int[count[l]];
+    int[] fill = new int[depth];
+    for (int i = 0; i < level.length; i++)
+      res[level[i]][fill[level[i]]++] = i;
+    return res;
+  }
+
+  private void run(IntStream is, IntConsumer f) {
+    workers.submit(() -> is.parallel().forEach(f)).join();
+  }
+}
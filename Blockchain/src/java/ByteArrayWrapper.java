@@ -4,11 +4,26 @@ import java.util.Arrays;
 public class ByteArrayWrapper {
 
   private byte[] contents;
+  private int hash;                     // cached hashCode
 
   public ByteArrayWrapper(byte[] b) {
     contents = new byte[b.length];
     for (int i = 0; i < contents.length; i++)
       contents[i] = b[i];
+    hash = Arrays.hashCode(contents);
+  }
+
+  private ByteArrayWrapper(byte[] b, int h) {
+    contents = b;
+    hash = h;
+  }
+
+  /**
+   * @return a wrapper sharing {@code b} instead of copying it, for lookups
+   *         where {@code b} isn't modified while the wrapper is in use
+   */
+  public static ByteArrayWrapper wrap(byte[] b) {
+    return new ByteArrayWrapper(b, Arrays.hashCode(b));
   }
 
   public boolean equals(Object other) {
@@ -30,7 +45,7 @@ public class ByteArrayWrapper {
       if (b == null)
         return false;
       else {
-        if (contents.length != b.length)
+        if (hash != otherB.hash || contents.length != b.length)
           return false;
         for (int i = 0; i < b.length; i++)
           if (contents[i] != b[i])
@@ -41,6 +56,6 @@ public class ByteArrayWrapper {
   }
 
   public int hashCode() {
-    return Arrays.hashCode(contents);
+    return hash;
   }
 }
@@ -0,0 +1,9 @@
+/** read-only lookup of unspent outputs by outpoint */
+public interface CoinView {
+
+  /**
+   * @return the output {@code index} of transaction {@code txHash}, or null
+   *         if it isn't available
+   */
+  Transaction.Output getTxOutput(byte[] txHash, int index);
+}
@@ -0,0 +1,187 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A block relayed by its header, its coinbase and a 6-byte short id per
+ * transaction, instead of the transactions themselves. Short ids are
+ * SipHash-2-4 of the transaction hash, keyed by the block hash and a salt
+ * chosen by the sender, so ids can't be collided in advance.
+ *
+ * <p> The receiver rebuilds the block from its own pool with
+ * {@link #reconstruct} and fetches only the transactions it lacks.
+ */
+public class CompactBlock {
+  /** bytes kept of each SipHash */
+  public static final int SHORT_ID_BYTES = 6;
+  private static final long SHORT_ID_MASK = (1L << (8 * SHORT_ID_BYTES)) - 1;
+
+  private final byte[] hash;
+  private final byte[] prevBlockHash;
+  private final Transaction coinbase;
+  private final byte[] target;
+  private final long nonce;
+  private final long salt;
+  private final long[] shortIds;          // one per transaction, in order
+  private final SipHash sip;
+
+  public CompactBlock(byte[] hash, byte[] prevBlockHash, Transaction coinbase,
+                      byte[] target, long nonce, long salt, long[] shortIds) {
+    this.hash = hash;
+    this.prevBlockHash = prevBlockHash;
+    this.coinbase = coinbase;
+    this.target = target;
+    this.nonce = nonce;
+    this.salt = salt;
+    this.shortIds = shortIds;
+    sip = keyFor(hash, salt);
+  }
+
+  /** @return compact form of the finalized {@code block} with a random salt */
+  public static CompactBlock of(Block block) {
+    return of(block, ThreadLocalRandom.current().nextLong());
+  }
+
+  public static CompactBlock of(Block block, long salt) {
+    SipHash sip = keyFor(block.getHash(), salt);
+    ArrayList<Transaction> txs = block.getTransactions();
+    long[] ids = new long[txs.size()];
+    for (int i = 0; i < ids.length; i++)
+      ids[i] = shortId(sip, txs.get(i).getHash());
+    return new CompactBlock(block.getHash(), block.getPrevBlockHash(),
+                            block.getCoinbase(), block.getTarget(),
+                            block.getNonce(), salt, ids);
+  }
+
+  public byte[] getHash() {
+    return hash;
+  }
+
+  public byte[] getPrevBlockHash() {
+    return prevBlockHash;
+  }
+
+  public Transaction getCoinbase() {
+    return coinbase;
+  }
+
+  public byte[] getTarget() {
+    return target;
+  }
+
+  public long getNonce() {
+    return nonce;
+  }
+
+  public long getSalt() {
+    return salt;
+  }
+
+  public int numTransactions() {
+    return shortIds.length;
+  }
+
+  /** @return short id of transaction {@code index} of the block */
+  public long getShortId(int index) {
+    return shortIds[index];
+  }
+
+  /** @return short id of the transaction with hash {@code txHash} in this block */
+  public long shortId(byte[] txHash) {
+    return shortId(sip, txHash);
+  }
+
+  /**
+   * Matches short ids against the transactions of {@code pool}. Ids matched
+   * by two pooled transactions are left missing.
+   */
+  public Reconstruction reconstruct(TransactionPool pool) {
+    HashMap<Long, Integer> slot = new HashMap<>(2 * shortIds.length);
+    for (int i = 0; i < shortIds.length; i++)
+      if (slot.put(shortIds[i], i) != null) slot.put(shortIds[i], -1);
+
+    Transaction[] txs = new Transaction[shortIds.length];
+    boolean[] ambiguous = new boolean[shortIds.length];
+    for (Transaction t : pool.view()) {
+      Integer i = slot.get(shortId(sip, t.getHash()));
+      if (i == null || i < 0) continue;
+      if (txs[i] != null) ambiguous[i] = true;
+      txs[i] = t;
+    }
+    for (int i = 0; i < txs.length; i++)
+      if (ambiguous[i]) txs[i] = null;
+    return new Reconstruction(txs);
+  }
+
+  /** a block being rebuilt from a compact block */
+  public class Reconstruction {
+    private final Transaction[] txs;
+
+    Reconstruction(Transaction[] txs) {
+      this.txs = txs;
+    }
+
+    /** @return indices of the transactions still missing, in order */
+    public int[] missing() {
+      int n = 0;
+      for (Transaction t : txs) if (t == null) n++;
+      int[] res = new int[n];
+      for (int i = 0, k = 0; i < txs.length; i++)
+        if (txs[i] == null) res[k++] = i;
+      return res;
+    }
+
+    /**
+     * Fills the transactions at {@code indices} with {@code found}, as
+     * fetched from the sender. Transactions not matching their short id are
+     * ignored.
+     */
+    public void fill(int[] indices, List<Transaction> found) {
+      for (int k = 0; k < indices.length && k < found.size(); k++) {
+        Transaction t = found.get(k);
+        int i = indices[k];
+        if (t != null && t.getHash() != null && shortId(sip, t.getHash()) == shortIds[i])
+          txs[i] = t;
+      }
+    }
+
+    /**
+     * @return the rebuilt block, or null if transactions are still missing
+     *         or the result doesn't hash to the compact block's hash, as when
+     *         a pooled transaction collides with a block transaction
+     */
+    public Block toBlock() {
+      Block b = new Block(prevBlockHash, coinbase);
+      b.setTarget(target);
+      b.setNonce(nonce);
+      for (Transaction t : txs) {
+        if (t == null) return null;
+        b.addTransaction(t);
+      }
+      b.finalize();
+      return Arrays.equals(b.getHash(), hash) ? b : null;
+    }
+  }
+
+  // SipHash keyed by the first 16 bytes of SHA-256(block hash || salt)
+  private static SipHash keyFor(byte[] blockHash, long salt) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(blockHash);
+      for (int i = 0; i < 8; i++) md.update((byte) (salt >>> (8 * i)));
+      byte[] k = md.digest();
+      return new SipHash(SipHash.le(k, 0, 8), SipHash.le(k, 8, 8));
+    } catch (NoSuchAlgorithmException x) {
+      x.printStackTrace(System.err);
+      return null;
+    }
+  }
+
+  private static long shortId(SipHash sip, byte[] txHash) {
+    return sip.hash(txHash) & SHORT_ID_MASK;
+  }
+}
@@ -0,0 +1,114 @@
+// Round trip of a compact block between two in-process handlers. The sender
+// pools every transaction and mines a block from them; the receiver pools
+// all but every fourth one. The check then goes through each relay step:
+//
+//   announce     the sender compacts its new block
+//   reconstruct  the receiver matches short ids against its pool, leaving
+//                exactly the withheld transactions missing
+//   fill         the missing transactions are fetched from the sender
+//   connect      the rebuilt block hashes like the sender's and becomes the
+//                receiver's head
+//
+// The same block is then handed to a second receiver through
+// BlockHandler.processCompactBlock. Exits with status 1 on any failure.
+//
+// Usage: CompactBlockCheck [transactions]
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Arrays;
+
+public class CompactBlockCheck {
+  static final int WITHHELD = 4;         // receiver lacks every 4th transaction
+
+  public static void main(String[] args) throws Exception {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    KeyPairGenerator g = KeyPairGenerator.getInstance("RSA");
+    g.initialize(1024);
+    KeyPair alice = g.generateKeyPair(), bob = g.generateKeyPair();
+
+    // a block splitting the genesis coinbase into one coin per transaction
+    Block genesis = new Block(null, alice.getPublic());
+    genesis.finalize();
+    Transaction split = new Transaction();
+    split.addInput(genesis.getCoinbase().getHash(), 0);
+    long coin = (Block.COINBASE_UNITS / 2) / n;
+    for (int i = 0; i < n; i++) split.addOutputUnits(coin, alice.getPublic());
+    split.addSignature(sign(alice, split.getRawDataToSign(0)), 0);
+    split.finalize();
+    Block funding = new Block(genesis.getHash(), bob.getPublic());
+    funding.addTransaction(split);
+    funding.finalize();
+
+    BlockChain senderChain = node(genesis, funding);
+    BlockChain receiverChain = node(genesis, funding);
+    BlockChain otherChain = node(genesis, funding);
+    BlockHandler sender = new BlockHandler(senderChain);
+    BlockHandler receiver = new BlockHandler(receiverChain);
+    BlockHandler other = new BlockHandler(otherChain);
+    int withheld = 0;
+    for (int i = 0; i < n; i++) {
+      Transaction t = new Transaction();
+      t.addInput(split.getHash(), i);
+      t.addOutputUnits(coin - 1000, bob.getPublic());
+      t.addSignature(sign(alice, t.getRawDataToSign(0)), 0);
+      t.finalize();
+      sender.processTx(t);
+      if (i % WITHHELD == 0) {
+        withheld++;
+      } else {
+        receiver.processTx(t);
+        other.processTx(t);
+      }
+    }
+
+    Block block = sender.createBlock(bob.getPublic());
+    check(block != null && block.getTransactions().size() == n,
+          "sender mined a block of all " + n + " transactions");
+
+    CompactBlock cb = sender.compact(block);
+    check(cb.numTransactions() == n, "announced " + n + " short ids");
+
+    CompactBlock.Reconstruction r = cb.reconstruct(receiverChain.getTransactionPool());
+    int[] missing = r.missing();
+    check(missing.length == withheld, missing.length + " of " + withheld
+          + " withheld transactions missing");
+    check(r.toBlock() == null, "incomplete block not rebuilt");
+
+    r.fill(missing, sender.getBlockTransactions(cb.getHash(), missing));
+    check(r.missing().length == 0, "missing transactions filled");
+
+    Block rebuilt = r.toBlock();
+    check(rebuilt != null && Arrays.equals(rebuilt.getHash(), block.getHash()),
+          "rebuilt block hashes like the sender's");
+    check(receiver.processBlock(rebuilt)
+          && Arrays.equals(receiverChain.getMaxHeightBlock().getHash(), block.getHash()),
+          "rebuilt block connected as head");
+    check(receiverChain.getTransactionPool().size() == 0, "receiver pool emptied");
+
+    check(other.processCompactBlock(sender.compact(block), sender)
+          && Arrays.equals(otherChain.getMaxHeightBlock().getHash(), block.getHash()),
+          "processCompactBlock connected the block");
+    System.out.println("ok");
+  }
+
+  static BlockChain node(Block genesis, Block funding) {
+    BlockChain bc = new BlockChain(genesis);
+    if (!bc.addBlock(funding)) throw new IllegalStateException("funding block");
+    return bc;
+  }
+
+  static void check(boolean ok, String what) {
+    System.out.println((ok ? "ok    " : "FAIL  ") + what);
+    if (!ok) System.exit(1);
+  }
+
+  static byte[] sign(KeyPair k, byte[] msg) throws GeneralSecurityException {
+    Signature s = Signature.getInstance("SHA256withRSA");
+    s.initSign(k.getPrivate());
+    s.update(msg);
+    return s.sign();
+  }
+}
@@ -0,0 +1,266 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Binary snapshot of the transaction pool, so a restarted node keeps its
+ * backlog. The file holds the transactions in arrival order (parents before
+ * children) with the time they were added. A recipient key is written once,
+ * the first time an output pays it, and later outputs refer to it by
+ * position. Records are streamed to the file as the pool is read.
+ *
+ * <p> Reloading streams the file in batches: while one batch is read,
+ * the previous one is hashed and its signatures verified in parallel, then
+ * it is added to the pool. Transactions confirmed or spent in the loaded
+ * chain are dropped.
+ */
+public class MempoolSnapshot {
+  private static final int MAGIC = 0x4d504f4c;    // "MPOL"
+  private static final int VERSION = 2;
+  /** transactions verified together when reloading */
+  public static final int BATCH = 1024;
+  private static final int BUFFER = 1 << 16;
+  private static final int NEW_KEY = -1;
+
+  // a transaction as read, before it is hashed and verified
+  private static class Record {
+    final Transaction tx;
+    final long time;
+    Record(Transaction tx, long time) {
+      this.tx = tx;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Writes the pool of {@code chain} to {@code file}, replacing it
+   * atomically and durably: the new file is forced to disk before it is
+   * renamed, and the directory after. The pool is read through its view,
+   * without blocking transactions being added meanwhile.
+   */
+  public static void save(BlockChain chain, Path file) throws IOException {
+    TransactionPool pool = chain.getTransactionPool();
+    HashMap<Integer, Integer> keyIndex = new HashMap<>();   // address id -> position
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING,
+                                           StandardOpenOption.WRITE);
+         DataOutputStream out = new DataOutputStream(
+           new BufferedOutputStream(Channels.newOutputStream(ch), BUFFER))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (Transaction t : pool.view()) {
+        long time = pool.getTime(t.getHash());
+        if (time < 0) continue;                   // removed meanwhile
+        out.writeBoolean(true);
+        out.writeLong(time);
+        out.writeInt(t.numInputs());
+        for (Transaction.Input in : t.getInputs()) {
+          writeBytes(out, in.prevTxHash);
+          out.writeInt(in.outputIndex);
+          writeBytes(out, in.signature);
+        }
+        out.writeInt(t.numOutputs());
+        for (Transaction.Output op : t.getOutputs()) {
+          out.writeLong(op.getAmount());
+          Integer k = keyIndex.get(op.getAddressId());
+          if (k != null) {
+            out.writeInt(k);
+          } else {
+            keyIndex.put(op.getAddressId(), keyIndex.size());
+            out.writeInt(NEW_KEY);
+            writeBytes(out, op.getAddress().getEncoded());
+          }
+        }
+      }
+      out.writeBoolean(false);
+      out.flush();
+      ch.force(true);                   // or the rename may land first
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    forceDirectory(file.toAbsolutePath().getParent());
+  }
+
+  // make a rename in dir durable. Not every platform can open a
+  // directory; there the rename is as durable as the file system makes it
+  private static void forceDirectory(Path dir) throws IOException {
+    if (dir == null) return;
+    FileChannel ch;
+    try {
+      ch = FileChannel.open(dir, StandardOpenOption.READ);
+    } catch (IOException | UnsupportedOperationException x) {
+      return;
+    }
+    try (ch) {
+      ch.force(true);
+    }
+  }
+
+  /**
+   * Saves the pool of {@code chain} to {@code file} every {@code periodMs}
+   * on {@code timer}. Failures are reported and retried at the next period.
+   */
+  public static ScheduledFuture<?> saveEvery(BlockChain chain, Path file,
+                                             long periodMs,
+                                             ScheduledExecutorService timer) {
+    return timer.scheduleAtFixedRate(() -> {
+        try {
+          save(chain, file);
+        } catch (IOException x) {
+          x.printStackTrace(System.err);
+        }
+      }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Saves the pool of {@code chain} to {@code file} when the JVM exits */
+  public static Thread saveOnShutdown(BlockChain chain, Path file) {
+    Thread hook = new Thread(() -> {
+        try {
+          save(chain, file);
+        } catch (IOException x) {
+          x.printStackTrace(System.err);
+        }
+      });
+    Runtime.getRuntime().addShutdownHook(hook);
+    return hook;
+  }
+
+  public static int load(BlockChain chain, Path file) throws IOException {
+    return load(chain, file, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Adds the transactions saved in {@code file} to the pool of
+   * {@code chain}, verifying signatures on {@code workers}. A truncated
+   * file is loaded up to the last complete transaction.
+   * @return number of transactions pooled
+   */
+  public static int load(BlockChain chain, Path file, ForkJoinPool workers)
+    throws IOException {
+    int loaded = 0;
+    try (DataInputStream in = new DataInputStream(
+           new BufferedInputStream(Files.newInputStream(file), BUFFER))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        throw new IOException("not a mempool snapshot: " + file);
+      ArrayList<PublicKey> keys = new ArrayList<>();
+      KeyFactory kf = KeyFactory.getInstance("RSA");
+      boolean more = true;
+      ArrayList<Record> batch = null;
+      CompletableFuture<boolean[]> verified = null;
+      while (true) {
+        ArrayList<Record> next = new ArrayList<>();
+        try {
+          while (more && next.size() < BATCH) {
+            more = in.readBoolean();
+            if (more) next.add(readRecord(in, keys, kf));
+          }
+        } catch (EOFException x) {
+          more = false;                  // truncated, keep what was read
+        }
+        if (verified != null) {
+          boolean[] ok = verified.join();
+          for (int i = 0; i < batch.size(); i++)
+            if (ok[i] && chain.restoreTransaction(batch.get(i).tx, batch.get(i).time))
+              loaded++;
+        }
+        if (next.isEmpty()) break;
+        batch = next;
+        ArrayList<Record> b = next;
+        verified = CompletableFuture.supplyAsync(() -> verify(chain, b), workers);
+      }
+    } catch (GeneralSecurityException x) {
+      throw new IOException("bad key in snapshot: " + file, x);
+    }
+    return loaded;
+  }
+
+  // hash the batch, then check each transaction's signatures against the
+  // coins of the chain head, the pool and the batch itself
+  private static boolean[] verify(BlockChain chain, ArrayList<Record> batch) {
+    int n = batch.size();
+    IntStream.range(0, n).parallel().forEach(i -> batch.get(i).tx.finalize());
+    HashMap<ByteArrayWrapper, Transaction> created = new HashMap<>(2 * n);
+    for (Record r : batch) created.put(new ByteArrayWrapper(r.tx.getHash()), r.tx);
+
+    UTXOPool head = chain.getMaxHeightUTXOPool();
+    TransactionPool pool = chain.getTransactionPool();
+    CoinView coins = (h, j) -> {
+      Transaction.Output op = head.getTxOutput(h, j);
+      if (op != null) return op;
+      Transaction p = pool.getTransaction(h);
+      if (p == null) p = created.get(ByteArrayWrapper.wrap(h));
+      return p == null || j < 0 || j >= p.numOutputs() ? null : p.getOutput(j);
+    };
+    boolean[] ok = new boolean[n];
+    IntStream.range(0, n).parallel()
+      .forEach(i -> ok[i] = TxValidator.verifySignatures(batch.get(i).tx, coins));
+    return ok;
+  }
+
+  private static Record readRecord(DataInputStream in, ArrayList<PublicKey> keys,
+                                   KeyFactory kf)
+    throws IOException, GeneralSecurityException {
+    long time = in.readLong();
+    Transaction tx = new Transaction();
+    int nIn = in.readInt();
+    byte[][] sigs = new byte[nIn][];
+    for (int i = 0; i < nIn; i++) {
+      byte[] prev = readBytes(in);
+      tx.addInput(prev, in.readInt());
+      sigs[i] = readBytes(in);
+    }
+    int nOut = in.readInt();
+    for (int i = 0; i < nOut; i++) {
+      long amount = in.readLong();
+      int k = in.readInt();
+      if (k == NEW_KEY) {
+        keys.add(kf.generatePublic(new X509EncodedKeySpec(readBytes(in))));
+        k = keys.size() - 1;
+      }
+      if (k < 0 || k >= keys.size())
+        throw new IOException("bad key index in snapshot");
+      tx.addOutputUnits(amount, keys.get(k));
+    }
+    for (int i = 0; i < nIn; i++)
+      if (sigs[i] != null) tx.addSignature(sigs[i], i);
+    return new Record(tx, time);
+  }
+
+  // length-prefixed bytes, -1 for null
+  private static void writeBytes(DataOutputStream out, byte[] b)
+    throws IOException {
+    out.writeInt(b == null ? -1 : b.length);
+    if (b != null) out.write(b);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < -1) throw new IOException("bad length in snapshot");
+    if (n == -1) return null;
+    byte[] b = new byte[n];
+    in.readFully(b);
+    return b;
+  }
+}
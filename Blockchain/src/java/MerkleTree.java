@@ -0,0 +1,182 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Merkle tree over a list of hashes. Every level is cached, so appending or
+ * replacing a leaf rehashes only its path to the root. A node without a
+ * sibling is promoted to the next level unchanged.
+ *
+ * <p> Leaves are hashed with a 0x00 prefix and inner nodes with 0x01, so an
+ * inner node can't be passed off as a leaf.
+ */
+public class MerkleTree {
+  /** levels at least this wide are hashed in parallel when building */
+  public static final int PARALLEL_THRESHOLD = 1024;
+
+  private static final byte LEAF = 0, NODE = 1;
+
+  private ArrayList<byte[]> leaves;
+  // levels.get(0) holds the leaf hashes, the last level holds the root
+  private ArrayList<ArrayList<byte[]>> levels;
+  private HashMap<ByteArrayWrapper, Integer> index;   // leaf -> position
+
+  private static final ThreadLocal<MessageDigest> sha256 =
+    ThreadLocal.withInitial(() -> {
+        try {
+          return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+          x.printStackTrace(System.err);
+          return null;
+        }
+      });
+
+  /**
+   * proof that a leaf is in a tree: its sibling at each level up to the root.
+   * Which side each sibling is on follows from the index and tree size.
+   */
+  public static class Proof {
+    public final int index;               // position of the leaf
+    public final int size;                // number of leaves in the tree
+    public final byte[][] siblings;       // bottom up, skipping promotions
+
+    Proof(int index, int size, byte[][] siblings) {
+      this.index = index;
+      this.size = size;
+      this.siblings = siblings;
+    }
+  }
+
+  public MerkleTree() {
+    leaves = new ArrayList<>();
+    levels = new ArrayList<>();
+    levels.add(new ArrayList<>());
+    index = new HashMap<>();
+  }
+
+  /** Builds the tree over {@code leaves}, wide levels in parallel */
+  public MerkleTree(List<byte[]> leaves) {
+    this();
+    this.leaves.addAll(leaves);
+    for (int i = 0; i < leaves.size(); i++)
+      index.putIfAbsent(new ByteArrayWrapper(leaves.get(i)), i);
+    byte[][] hs = new byte[leaves.size()][];
+    IntStream ls = IntStream.range(0, hs.length);
+    if (hs.length >= PARALLEL_THRESHOLD) ls = ls.parallel();
+    ls.forEach(i -> hs[i] = leafHash(leaves.get(i)));
+    ArrayList<byte[]> lv = levels.get(0);
+    lv.addAll(Arrays.asList(hs));
+    while (lv.size() > 1) {
+      ArrayList<byte[]> prev = lv;
+      byte[][] next = new byte[(prev.size() + 1) / 2][];
+      IntStream is = IntStream.range(0, next.length);
+      if (next.length >= PARALLEL_THRESHOLD) is = is.parallel();
+      is.forEach(p -> next[p] = parent(prev, p));
+      lv = new ArrayList<>(Arrays.asList(next));
+      levels.add(lv);
+    }
+  }
+
+  public int size() {
+    return leaves.size();
+  }
+
+  /** @return root hash, or null for an empty tree */
+  public byte[] getRoot() {
+    ArrayList<byte[]> top = levels.get(levels.size() - 1);
+    return top.isEmpty() ? null : top.get(0);
+  }
+
+  /** Appends {@code leaf}, in O(log n) */
+  public void add(byte[] leaf) {
+    index.putIfAbsent(new ByteArrayWrapper(leaf), leaves.size());
+    leaves.add(leaf);
+    levels.get(0).add(leafHash(leaf));
+    update(leaves.size() - 1);
+  }
+
+  /** Replaces the leaf at position {@code i} with {@code leaf}, in O(log n) */
+  public void set(int i, byte[] leaf) {
+    ByteArrayWrapper old = new ByteArrayWrapper(leaves.get(i));
+    Integer j = index.get(old);
+    if (j != null && j == i) index.remove(old);
+    index.putIfAbsent(new ByteArrayWrapper(leaf), i);
+    leaves.set(i, leaf);
+    levels.get(0).set(i, leafHash(leaf));
+    update(i);
+  }
+
+  /** @return position of the first leaf equal to {@code leaf}, or -1 */
+  public int indexOf(byte[] leaf) {
+    Integer i = index.get(new ByteArrayWrapper(leaf));
+    return i == null ? -1 : i;
+  }
+
+  /** @return inclusion proof of the leaf at position {@code leaf} */
+  public Proof getProof(int leaf) {
+    ArrayList<byte[]> sibs = new ArrayList<>();
+    for (int k = 0, i = leaf; k < levels.size() - 1; k++, i /= 2) {
+      ArrayList<byte[]> lv = levels.get(k);
+      int s = i ^ 1;
+      if (s >= lv.size()) continue;        // promoted without a sibling
+      sibs.add(lv.get(s));
+    }
+    return new Proof(leaf, size(), sibs.toArray(new byte[0][]));
+  }
+
+  /**
+   * @return true if {@code proof} shows {@code leaf} is under {@code root}.
+   *         The side of each sibling and the number of siblings are derived
+   *         from the proof's index and size, not taken from the prover.
+   */
+  public static boolean verify(byte[] root, byte[] leaf, Proof proof) {
+    if (root == null || leaf == null || proof == null || proof.siblings == null)
+      return false;
+    int i = proof.index, n = proof.size, k = 0;
+    if (i < 0 || i >= n) return false;
+    byte[] h = leafHash(leaf);
+    for (; n > 1; i /= 2, n = (n + 1) / 2) {
+      if ((i ^ 1) >= n) continue;          // promoted without a sibling
+      if (k == proof.siblings.length || proof.siblings[k] == null) return false;
+      byte[] s = proof.siblings[k++];
+      h = (i & 1) == 1 ? nodeHash(s, h) : nodeHash(h, s);
+    }
+    return k == proof.siblings.length && Arrays.equals(h, root);
+  }
+
+  // rehash the path from leaf i to the root
+  private void update(int i) {
+    for (int k = 0; levels.get(k).size() > 1; k++, i /= 2) {
+      if (k + 1 == levels.size()) levels.add(new ArrayList<>());
+      ArrayList<byte[]> up = levels.get(k + 1);
+      byte[] p = parent(levels.get(k), i / 2);
+      if (i / 2 < up.size()) up.set(i / 2, p);
+      else up.add(p);
+    }
+  }
+
+  // node p of the level above lv
+  private static byte[] parent(List<byte[]> lv, int p) {
+    byte[] l = lv.get(2 * p);
+    return 2 * p + 1 < lv.size() ? nodeHash(l, lv.get(2 * p + 1)) : l;
+  }
+
+  private static byte[] leafHash(byte[] leaf) {
+    MessageDigest md = sha256.get();
+    md.update(LEAF);
+    md.update(leaf);
+    return md.digest();
+  }
+
+  private static byte[] nodeHash(byte[] l, byte[] r) {
+    MessageDigest md = sha256.get();
+    md.update(NODE);
+    md.update(l);
+    md.update(r);
+    return md.digest();
+  }
+}
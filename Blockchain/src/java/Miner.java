@@ -0,0 +1,168 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches for a nonce giving a block hash that meets the block's target.
+ * The nonce space is split into one range per worker thread. The header
+ * before the nonce is hashed once into a SHA-256 midstate, which each
+ * attempt copies and finishes with the 8 nonce bytes, so only the last
+ * chunk of the header is hashed per attempt.
+ */
+public class Miner {
+  // attempts between checks for cancellation
+  private static final int CHECK_EVERY = 1 << 12;
+
+  private final int threads;
+  private final ExecutorService workers;
+  private volatile Job current;          // latest job started
+
+  /** an ongoing search, which can be cancelled */
+  public static class Job {
+    private final Block block;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final CompletableFuture<Block> result = new CompletableFuture<>();
+    private final AtomicLong attempts = new AtomicLong();
+    private int running;
+
+    Job(Block block) {
+      this.block = block;
+    }
+
+    /** Stops the search, which then completes with null */
+    public void cancel() {
+      if (done.compareAndSet(false, true)) result.complete(null);
+    }
+
+    public boolean isCancelled() {
+      return result.isDone() && result.join() == null;
+    }
+
+    /** @return the mined block, or null if the search was cancelled */
+    public Block join() {
+      return result.join();
+    }
+
+    public CompletableFuture<Block> getResult() {
+      return result;
+    }
+
+    /** @return hashes tried so far */
+    public long getAttempts() {
+      return attempts.get();
+    }
+
+    public Block getBlock() {
+      return block;
+    }
+
+    // a worker finished its range without success
+    private synchronized void exhausted() {
+      if (--running == 0) cancel();
+    }
+  }
+
+  /** a miner searching on {@code threads} daemon threads */
+  public Miner(int threads) {
+    this.threads = threads;
+    workers = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "miner");
+        t.setDaemon(true);
+        return t;
+      });
+  }
+
+  public Miner() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Starts searching for a nonce for {@code block}, whose transactions and
+   * target must not change meanwhile. On success the block's nonce is set
+   * and it is finalized. A previous job still running is cancelled.
+   */
+  public Job mine(Block block) {
+    cancel();
+    Job job = new Job(block);
+    current = job;
+    byte[] prefix = block.getHeaderPrefix();
+    MessageDigest mid;
+    try {
+      mid = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException x) {
+      x.printStackTrace(System.err);
+      job.cancel();
+      return job;
+    }
+    mid.update(prefix);
+
+    // split the unsigned 64-bit nonce space into one range per thread
+    long span = Long.divideUnsigned(-1L, threads);
+    job.running = threads;
+    for (int t = 0; t < threads; t++) {
+      long from = t * span, to = t == threads - 1 ? -1L : from + span - 1;
+      workers.execute(() -> search(job, mid, block.getTarget(), from, to));
+    }
+    return job;
+  }
+
+  /** Cancels the current search, as when a new head arrives */
+  public void cancel() {
+    Job j = current;
+    if (j != null) j.cancel();
+  }
+
+  public void shutdown() {
+    cancel();
+    workers.shutdownNow();
+  }
+
+  // try nonces from..to (unsigned, inclusive)
+  private static void search(Job job, MessageDigest mid, byte[] target,
+                             long from, long to) {
+    MessageDigest md;
+    try {
+      synchronized (mid) {
+        md = (MessageDigest) mid.clone();
+      }
+    } catch (CloneNotSupportedException x) {
+      x.printStackTrace(System.err);
+      job.exhausted();
+      return;
+    }
+    byte[] nonce = new byte[Long.BYTES];
+    long n = from, tried = 0;
+    while (true) {
+      if ((++tried & (CHECK_EVERY - 1)) == 0) {
+        job.attempts.addAndGet(CHECK_EVERY);
+        if (job.done.get()) return;
+      }
+      for (int i = 0; i < Long.BYTES; i++)
+        nonce[i] = (byte) (n >>> (8 * (Long.BYTES - 1 - i)));
+      MessageDigest attempt;
+      try {
+        attempt = (MessageDigest) md.clone();
+      } catch (CloneNotSupportedException x) {
+        job.exhausted();
+        return;
+      }
+      attempt.update(nonce);
+      if (Block.meetsTarget(attempt.digest(), target)) {
+        if (job.done.compareAndSet(false, true)) {
+          job.block.setNonce(n);
+          job.block.finalize();
+          job.attempts.addAndGet(tried & (CHECK_EVERY - 1));
+          job.result.complete(job.block);
+        }
+        return;
+      }
+      if (n == to) break;
+      n++;
+    }
+    job.exhausted();
+  }
+}
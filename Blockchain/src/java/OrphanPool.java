@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Transactions spending outputs of parents that aren't known yet, indexed by
+ * the hash of each missing parent so that a parent's arrival finds its
+ * orphans directly. The pool is bounded: the oldest orphans are evicted
+ * first, and orphans older than the maximum age are dropped. An orphan
+ * handed back when a parent arrives and then added again, because it still
+ * misses another parent, keeps the time it was first added. Orphans are
+ * indexed by that time, so eviction and expiry take them from the front of
+ * the index instead of scanning the pool.
+ */
+public class OrphanPool {
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  public static final long DEFAULT_MAX_AGE = 20 * 60 * 1000;  // ms
+
+  private final int maxSize;
+  private final long maxAge;
+  private HashMap<ByteArrayWrapper, Orphan> orphans;   // by hash
+  private TreeSet<Orphan> byTime;                       // oldest first
+  private long seq;                                     // breaks ties in time
+  // missing parent hash -> hashes of orphans waiting on it
+  private HashMap<ByteArrayWrapper, LinkedHashSet<ByteArrayWrapper>> waiting;
+  // when recently handed back orphans were first added, newest last
+  private LinkedHashMap<ByteArrayWrapper, Long> released;
+
+  private static class Orphan {
+    Transaction tx;
+    ByteArrayWrapper hash;
+    long time;                              // when it was added
+    long seq;
+    ArrayList<ByteArrayWrapper> missing;    // parents it waits on
+    Orphan(Transaction tx, ByteArrayWrapper hash, long time, long seq,
+           ArrayList<ByteArrayWrapper> missing) {
+      this.tx = tx;
+      this.hash = hash;
+      this.time = time;
+      this.seq = seq;
+      this.missing = missing;
+    }
+  }
+
+  private static final Comparator<Orphan> BY_TIME = (a, b) -> {
+    int c = Long.compare(a.time, b.time);
+    return c != 0 ? c : Long.compare(a.seq, b.seq);
+  };
+
+  public OrphanPool(int maxSize, long maxAge) {
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    orphans = new HashMap<>();
+    byTime = new TreeSet<>(BY_TIME);
+    waiting = new HashMap<>();
+    released = new LinkedHashMap<ByteArrayWrapper, Long>() {
+        protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Long> e) {
+          return size() > Math.max(maxSize, 0);
+        }
+      };
+  }
+
+  public OrphanPool() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * Adds {@code tx}, waiting on the parent transactions whose hashes are
+   * {@code missingParents}, at time {@code now} (ms). Expired orphans are
+   * dropped and, if the pool is full, the oldest one is evicted. A pool of
+   * size 0 holds nothing.
+   */
+  public void add(Transaction tx, Collection<byte[]> missingParents, long now) {
+    ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+    if (maxSize <= 0 || orphans.containsKey(hash)) return;
+    Long first = released.remove(hash);
+    long time = first == null ? now : first;
+    if (now - time > maxAge) return;
+    expire(now);
+    if (orphans.size() >= maxSize) remove(byTime.first().hash);
+
+    ArrayList<ByteArrayWrapper> missing = new ArrayList<>();
+    for (byte[] p : missingParents) {
+      ByteArrayWrapper parent = new ByteArrayWrapper(p);
+      if (missing.contains(parent)) continue;
+      missing.add(parent);
+      waiting.computeIfAbsent(parent, k -> new LinkedHashSet<>()).add(hash);
+    }
+    Orphan o = new Orphan(tx, hash, time, seq++, missing);
+    orphans.put(hash, o);
+    byTime.add(o);
+  }
+
+  /**
+   * Removes and returns the orphans waiting on the transaction with hash
+   * {@code parentHash}, in the order they were added. They may still be
+   * missing other parents.
+   */
+  public ArrayList<Transaction> removeChildrenOf(byte[] parentHash) {
+    ArrayList<Transaction> res = new ArrayList<>();
+    LinkedHashSet<ByteArrayWrapper> hs = waiting.remove(new ByteArrayWrapper(parentHash));
+    if (hs == null) return res;
+    for (ByteArrayWrapper h : hs) {
+      Orphan o = orphans.get(h);
+      if (o == null) continue;
+      res.add(o.tx);
+      released.put(h, o.time);
+      remove(h);
+    }
+    return res;
+  }
+
+  /** Drops orphans added more than the maximum age before {@code now} */
+  public void expire(long now) {
+    while (!byTime.isEmpty() && now - byTime.first().time > maxAge)
+      remove(byTime.first().hash);
+  }
+
+  public boolean contains(byte[] txHash) {
+    return orphans.containsKey(new ByteArrayWrapper(txHash));
+  }
+
+  public int size() {
+    return orphans.size();
+  }
+
+  private void remove(ByteArrayWrapper hash) {
+    Orphan o = orphans.remove(hash);
+    if (o == null) return;
+    byTime.remove(o);
+    unlink(hash, o);
+  }
+
+  // drop orphan from the waiting lists of its missing parents
+  private void unlink(ByteArrayWrapper hash, Orphan o) {
+    for (ByteArrayWrapper p : o.missing) {
+      LinkedHashSet<ByteArrayWrapper> hs = waiting.get(p);
+      if (hs == null) continue;
+      hs.remove(hash);
+      if (hs.isEmpty()) waiting.remove(p);
+    }
+  }
+}
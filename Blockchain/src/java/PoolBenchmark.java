@@ -0,0 +1,152 @@
+// Contention benchmark for the transaction pool. Runs each workload on 1, 4
+// and 16 threads and prints throughput:
+//
+//   pool   threads add transactions to a TransactionPool, each add followed
+//          by lookups of pooled transactions and spent outpoints, while
+//          another thread keeps scanning the pool's view
+//   chain  threads hand signed transactions to BlockHandler.processTx,
+//          which verifies them before taking the chain's lock
+//
+// Usage: PoolBenchmark [pool transactions] [chain transactions]
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PoolBenchmark {
+  static final int[] THREADS = {1, 4, 16};
+  static final int LOOKUPS = 4;          // lookups per add
+  static volatile long sink;             // keeps scans from being optimized away
+
+  public static void main(String[] args) throws Exception {
+    int poolTxs = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int chainTxs = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+    KeyPairGenerator g = KeyPairGenerator.getInstance("RSA");
+    g.initialize(1024);
+    KeyPair alice = g.generateKeyPair(), bob = g.generateKeyPair();
+
+    Transaction[] txs = unsigned(poolTxs, bob);
+    pool(txs, 1);                        // warm up
+    for (int t : THREADS) {
+      long[] r = pool(txs, t);
+      System.out.printf("pool  %2d threads: %,12d ops/s  %,8d view scans%n",
+                        t, r[0], r[1]);
+    }
+
+    // a block splitting the genesis coinbase into one coin per transaction
+    Block genesis = new Block(null, alice.getPublic());
+    genesis.finalize();
+    Transaction split = new Transaction();
+    split.addInput(genesis.getCoinbase().getHash(), 0);
+    long coin = (Block.COINBASE_UNITS / 2) / chainTxs;
+    for (int i = 0; i < chainTxs; i++) split.addOutputUnits(coin, alice.getPublic());
+    split.addSignature(sign(alice, split.getRawDataToSign(0)), 0);
+    split.finalize();
+    Block funding = new Block(genesis.getHash(), bob.getPublic());
+    funding.addTransaction(split);
+    funding.finalize();
+    Transaction[] spends = new Transaction[chainTxs];
+    for (int i = 0; i < chainTxs; i++) {
+      Transaction t = new Transaction();
+      t.addInput(split.getHash(), i);
+      t.addOutputUnits(coin - 1000, bob.getPublic());
+      t.addSignature(sign(alice, t.getRawDataToSign(0)), 0);
+      t.finalize();
+      spends[i] = t;
+    }
+    chain(genesis, funding, spends, 1);  // warm up
+    for (int t : THREADS) {
+      long r = chain(genesis, funding, spends, t);
+      System.out.printf("chain %2d threads: %,12d tx/s%n", t, r);
+    }
+  }
+
+  // n transactions spending distinct made-up outpoints
+  static Transaction[] unsigned(int n, KeyPair to) {
+    Random rnd = new Random(1);
+    Transaction[] txs = new Transaction[n];
+    for (int i = 0; i < n; i++) {
+      byte[] prev = new byte[32];
+      rnd.nextBytes(prev);
+      Transaction t = new Transaction();
+      t.addInput(prev, 0);
+      t.addSignature(new byte[128], 0);
+      t.addOutputUnits(1 + rnd.nextInt(1_000_000), to.getPublic());
+      t.finalize();
+      txs[i] = t;
+    }
+    return txs;
+  }
+
+  // @return ops per second and completed view scans
+  static long[] pool(Transaction[] txs, int threads) throws InterruptedException {
+    TransactionPool pool = new TransactionPool();
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicLong scans = new AtomicLong();
+    Thread scanner = new Thread(() -> {
+        while (!done.get()) {
+          long n = 0;
+          for (Transaction t : pool.view()) n += t.numOutputs();
+          sink = n;
+          scans.incrementAndGet();
+        }
+      });
+    scanner.start();
+    Thread[] ts = new Thread[threads];
+    long t0 = System.nanoTime();
+    for (int k = 0; k < threads; k++) {
+      int from = k;
+      ts[k] = new Thread(() -> {
+          Random rnd = new Random(from);
+          for (int i = from; i < txs.length; i += threads) {
+            pool.addTransaction(txs[i], 1 + rnd.nextInt(1000));
+            for (int j = 0; j < LOOKUPS; j++) {
+              Transaction t = txs[rnd.nextInt(i + 1)];
+              pool.contains(t.getHash());
+              pool.getSpender(t.getInput(0).prevTxHash, 0);
+            }
+          }
+        });
+      ts[k].start();
+    }
+    for (Thread t : ts) t.join();
+    long ns = System.nanoTime() - t0;
+    done.set(true);
+    scanner.join();
+    long ops = (long) txs.length * (1 + 2 * LOOKUPS);
+    return new long[]{ops * 1_000_000_000L / ns, scans.get()};
+  }
+
+  // @return transactions pooled per second
+  static long chain(Block genesis, Block funding, Transaction[] spends,
+                    int threads) throws InterruptedException {
+    BlockChain bc = new BlockChain(genesis);
+    if (!bc.addBlock(funding)) throw new IllegalStateException("funding block");
+    BlockHandler bh = new BlockHandler(bc);
+    Thread[] ts = new Thread[threads];
+    long t0 = System.nanoTime();
+    for (int k = 0; k < threads; k++) {
+      int from = k;
+      ts[k] = new Thread(() -> {
+          for (int i = from; i < spends.length; i += threads) bh.processTx(spends[i]);
+        });
+      ts[k].start();
+    }
+    for (Thread t : ts) t.join();
+    long ns = System.nanoTime() - t0;
+    if (bc.getTransactionPool().size() != spends.length)
+      throw new IllegalStateException("pooled " + bc.getTransactionPool().size());
+    return spends.length * 1_000_000_000L / ns;
+  }
+
+  static byte[] sign(KeyPair k, byte[] msg) throws GeneralSecurityException {
+    Signature s = Signature.getInstance("SHA256withRSA");
+    s.initSign(k.getPrivate());
+    s.update(msg);
+    return s.sign();
+  }
+}
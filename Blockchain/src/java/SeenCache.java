@@ -0,0 +1,48 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded record of recently seen block or transaction hashes, and whether
+ * each was accepted or why it was rejected, so repeats are answered without
+ * validating them again. The oldest entries are forgotten first.
+ */
+public class SeenCache {
+  private static final String ACCEPTED = "accepted";
+
+  private final LinkedHashMap<ByteArrayWrapper, String> seen;
+
+  public SeenCache(int capacity) {
+    seen = new LinkedHashMap<ByteArrayWrapper, String>() {
+        protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, String> e) {
+          return size() > capacity;
+        }
+      };
+  }
+
+  public synchronized void markAccepted(byte[] hash) {
+    seen.put(new ByteArrayWrapper(hash), ACCEPTED);
+  }
+
+  public synchronized void markRejected(byte[] hash, String reason) {
+    seen.put(new ByteArrayWrapper(hash), reason);
+  }
+
+  /** @return true if {@code hash} was recently accepted or rejected */
+  public synchronized boolean contains(byte[] hash) {
+    return hash != null && seen.containsKey(ByteArrayWrapper.wrap(hash));
+  }
+
+  public synchronized boolean isAccepted(byte[] hash) {
+    return hash != null && seen.get(ByteArrayWrapper.wrap(hash)) == ACCEPTED;
+  }
+
+  /** @return why {@code hash} was rejected, or null if it wasn't recently */
+  public synchronized String rejectReason(byte[] hash) {
+    String r = hash == null ? null : seen.get(ByteArrayWrapper.wrap(hash));
+    return r == ACCEPTED ? null : r;
+  }
+
+  public synchronized int size() {
+    return seen.size();
+  }
+}
@@ -0,0 +1,53 @@
+/** SipHash-2-4, a keyed 64-bit hash for short identifiers */
+public class SipHash {
+  private final long k0, k1;
+
+  public SipHash(long k0, long k1) {
+    this.k0 = k0;
+    this.k1 = k1;
+  }
+
+  /** @return SipHash-2-4 of {@code data} under this key */
+  public long hash(byte[] data) {
+    long v0 = 0x736f6d6570736575L ^ k0;
+    long v1 = 0x646f72616e646f6dL ^ k1;
+    long v2 = 0x6c7967656e657261L ^ k0;
+    long v3 = 0x7465646279746573L ^ k1;
+    long[] v = {v0, v1, v2, v3};
+
+    int n = data.length, end = n - n % 8;
+    for (int i = 0; i < end; i += 8) {
+      long m = le(data, i, 8);
+      v[3] ^= m;
+      round(v);
+      round(v);
+      v[0] ^= m;
+    }
+    long last = ((long) n << 56) | le(data, end, n - end);
+    v[3] ^= last;
+    round(v);
+    round(v);
+    v[0] ^= last;
+
+    v[2] ^= 0xff;
+    for (int r = 0; r < 4; r++) round(v);
+    return v[0] ^ v[1] ^ v[2] ^ v[3];
+  }
+
+  private static void round(long[] v) {
+    v[0] += v[1]; v[1] = Long.rotateLeft(v[1], 13); v[1] ^= v[0];
+    v[0] = Long.rotateLeft(v[0], 32);
+    v[2] += v[3]; v[3] = Long.rotateLeft(v[3], 16); v[3] ^= v[2];
+    v[0] += v[3]; v[3] = Long.rotateLeft(v[3], 21); v[3] ^= v[0];
+    v[2] += v[1]; v[1] = Long.rotateLeft(v[1], 17); v[1] ^= v[2];
+    v[2] = Long.rotateLeft(v[2], 32);
+  }
+
+  // little-endian value of len bytes of b from off
+  static long le(byte[] b, int off, int len) {
+    long r = 0;
+    for (int i = len - 1; i >= 0; i--)
+      r = (r << 8) | (b[off + i] & 0xff);
+    return r;
+  }
+}
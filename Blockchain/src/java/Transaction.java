@@ -2,12 +2,14 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 public class Transaction {
 
+  /** number of base units in one coin, amounts are kept as exact integers */
+  public static final long COIN = 100_000_000L;
+
   public class Input {
     /** hash of the Transaction whose output is being used */
     public byte[] prevTxHash;
@@ -68,14 +70,52 @@ public class Transaction {
   }
 
   public class Output {
-    /** value in bitcoins of the output */
-    public double value;
+    /** value in base units, see {@link Transaction#COIN} */
+    private final long amount;
+    /** the interned recipient, null if none; see {@link AddressRegistry} */
+    private final AddressRegistry.Address recipient;
+    /** value in bitcoins of the output, derived from the amount */
+    public final double value;
     /** the address or public key of the recipient */
-    public PublicKey address;
+    public final PublicKey address;
 
     public Output(double v, PublicKey addr) {
-      value = v;
-      address = addr;
+      this(toUnits(v), addr);
+    }
+
+    // private so that an int literal picks the coin constructor above; use
+    // addOutputUnits from outside
+    private Output(long units, PublicKey addr) {
+      amount = units;
+      value = (double) units / COIN;
+      // share the interned key so outputs to one address hold a single key
+      recipient = addr == null ? null : AddressRegistry.intern(addr);
+      address = recipient == null ? null : recipient.key;
+    }
+
+    /** @return value in base units, see {@link Transaction#COIN} */
+    public long getAmount() {
+      return amount;
+    }
+
+    /** @return value in bitcoins of the output, derived from the amount */
+    public double getValue() {
+      return value;
+    }
+
+    /** @return the address or public key of the recipient */
+    public PublicKey getAddress() {
+      return address;
+    }
+
+    /** @return id of the interned address, -1 if there is none */
+    public int getAddressId() {
+      return recipient == null ? -1 : recipient.id;
+    }
+
+    /** @return the serialized recipient address, shared: do not modify */
+    public byte[] getAddressBytes() {
+      return recipient.getEncoded();
     }
 
     public boolean equals(Object other) {
@@ -88,22 +128,17 @@ public class Transaction {
 
       Output op = (Output) other;
 
-      if (value != op.value)
+      if (amount != op.amount)
         return false;
-      if (!((RSAPublicKey) address).getPublicExponent()
-          .equals(((RSAPublicKey) op.address).getPublicExponent()))
-        return false;
-      if (!((RSAPublicKey) address).getModulus()
-          .equals(((RSAPublicKey) op.address).getModulus()))
+      if (recipient != op.recipient)
         return false;
       return true;
     }
 
     public int hashCode() {
       int hash = 1;
-      hash = hash * 17 + (int) value * 10000;
-      hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-      hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+      hash = hash * 17 + Long.hashCode(amount);
+      hash = hash * 31 + getAddressId();
       return hash;
     }
   }
@@ -151,6 +186,34 @@ public class Transaction {
     outputs.add(op);
   }
 
+  /** add an output of {@code units} base units */
+  public void addOutputUnits(long units, PublicKey address) {
+    Output op = new Output(units, address);
+    outputs.add(op);
+  }
+
+  /**
+   * @return {@code v} coins converted to base units, rounded to the nearest
+   *         unit. Negative (or NaN) values never round up to zero, so they
+   *         stay invalid as amounts.
+   */
+  public static long toUnits(double v) {
+    if (Double.isNaN(v)) return -1;
+    long units = Math.round(v * COIN);
+    return v < 0 ? Math.min(units, -1) : units;
+  }
+
+  /**
+   * Overflow-checked sum of non-negative amounts.
+   * @return {@code sum + units}, or -1 if either is negative or the sum
+   *         overflows
+   */
+  public static long addUnits(long sum, long units) {
+    if (sum < 0 || units < 0) return -1;
+    long res = sum + units;
+    return res < 0 ? -1 : res;
+  }
+
   public void removeInput(int index) {
     inputs.remove(index);
   }
@@ -182,19 +245,14 @@ public class Transaction {
     for (int i = 0; i < outputIndex.length; i++)
       sigData.add(outputIndex[i]);
     for (Output op : outputs) {
-      ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-      bo.putDouble(op.value);
+      ByteBuffer bo = ByteBuffer.allocate(Long.SIZE / 8);
+      bo.putLong(op.amount);
       byte[] value = bo.array();
-      byte[] addressExponent = ((RSAPublicKey) op.address)
-        .getPublicExponent().toByteArray();
-      byte[] addressModulus = ((RSAPublicKey) op.address)
-        .getModulus().toByteArray();
+      byte[] addressBytes = op.getAddressBytes();
       for (int i = 0; i < value.length; i++)
         sigData.add(value[i]);
-      for (int i = 0; i < addressExponent.length; i++)
-        sigData.add(addressExponent[i]);
-      for (int i = 0; i < addressModulus.length; i++)
-        sigData.add(addressModulus[i]);
+      for (int i = 0; i < addressBytes.length; i++)
+        sigData.add(addressBytes[i]);
     }
     byte[] sigD = new byte[sigData.size()];
     int i = 0;
@@ -203,56 +261,101 @@ public class Transaction {
     return sigD;
   }
 
+  /**
+   * @return length of the data signed by input {@code index}, ie. the size
+   *         of {@link #getRawDataToSign(int)}
+   */
+  public int rawDataToSignLength(int index) {
+    byte[] prevTxHash = inputs.get(index).prevTxHash;
+    int len = (prevTxHash == null ? 0 : prevTxHash.length) + Integer.BYTES;
+    for (int i = 0; i < outputs.size(); i++)
+      len += Long.BYTES + outputs.get(i).getAddressBytes().length;
+    return len;
+  }
+
+  /**
+   * Writes the same bytes as {@link #getRawDataToSign(int)} into {@code dst}
+   * without allocating.
+   * @return number of bytes written, or -1 if {@code dst} is too small
+   */
+  public int getRawDataToSign(int index, byte[] dst) {
+    if (index >= inputs.size() || dst.length < rawDataToSignLength(index))
+      return -1;
+    Input in = inputs.get(index);
+    int pos = 0;
+    if (in.prevTxHash != null) {
+      System.arraycopy(in.prevTxHash, 0, dst, 0, in.prevTxHash.length);
+      pos = in.prevTxHash.length;
+    }
+    pos = putLong(dst, pos, in.outputIndex, Integer.BYTES);
+    for (int i = 0; i < outputs.size(); i++) {
+      Output op = outputs.get(i);
+      byte[] addressBytes = op.getAddressBytes();
+      pos = putLong(dst, pos, op.amount, Long.BYTES);
+      System.arraycopy(addressBytes, 0, dst, pos, addressBytes.length);
+      pos += addressBytes.length;
+    }
+    return pos;
+  }
+
+  // write low n bytes of v big-endian, as ByteBuffer does
+  private static int putLong(byte[] dst, int pos, long v, int n) {
+    for (int i = n - 1; i >= 0; i--)
+      dst[pos++] = (byte) (v >>> (8 * i));
+    return pos;
+  }
+
   public void addSignature(byte[] signature, int index) {
     inputs.get(index).addSignature(signature);
   }
 
+  /** @return length of {@link #getRawTx()}, without building it */
+  public int rawTxLength() {
+    int len = 0;
+    for (Input in : inputs)
+      len += (in.prevTxHash == null ? 0 : in.prevTxHash.length) + Integer.BYTES
+        + (in.signature == null ? 0 : in.signature.length);
+    for (Output op : outputs)
+      len += Long.BYTES + op.getAddressBytes().length;
+    return len;
+  }
+
   public byte[] getRawTx() {
-    ArrayList<Byte> rawTx = new ArrayList<Byte>();
+    byte[] tx = new byte[rawTxLength()];
+    int pos = 0;
     for (Input in : inputs) {
-      byte[] prevTxHash = in.prevTxHash;
-      ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-      b.putInt(in.outputIndex);
-      byte[] outputIndex = b.array();
-      byte[] signature = in.signature;
-      if (prevTxHash != null)
-        for (int i = 0; i < prevTxHash.length; i++)
-          rawTx.add(prevTxHash[i]);
-      for (int i = 0; i < outputIndex.length; i++)
-        rawTx.add(outputIndex[i]);
-      if (signature != null)
-        for (int i = 0; i < signature.length; i++)
-          rawTx.add(signature[i]);
+      if (in.prevTxHash != null) {
+        System.arraycopy(in.prevTxHash, 0, tx, pos, in.prevTxHash.length);
+        pos += in.prevTxHash.length;
+      }
+      pos = putLong(tx, pos, in.outputIndex, Integer.BYTES);
+      if (in.signature != null) {
+        System.arraycopy(in.signature, 0, tx, pos, in.signature.length);
+        pos += in.signature.length;
+      }
     }
     for (Output op : outputs) {
-      ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-      b.putDouble(op.value);
-      byte[] value = b.array();
-      byte[] addressExponent = ((RSAPublicKey) op.address)
-        .getPublicExponent().toByteArray();
-      byte[] addressModulus = ((RSAPublicKey) op.address)
-        .getModulus().toByteArray();
-      for (int i = 0; i < value.length; i++)
-        rawTx.add(value[i]);
-      for (int i = 0; i < addressExponent.length; i++)
-        rawTx.add(addressExponent[i]);
-      for (int i = 0; i < addressModulus.length; i++)
-        rawTx.add(addressModulus[i]);
+      byte[] addressBytes = op.getAddressBytes();
+      pos = putLong(tx, pos, op.amount, Long.BYTES);
+      System.arraycopy(addressBytes, 0, tx, pos, addressBytes.length);
+      pos += addressBytes.length;
     }
-    byte[] tx = new byte[rawTx.size()];
-    int i = 0;
-    for (Byte b : rawTx)
-      tx[i++] = b;
     return tx;
   }
 
   public void finalize() {
+    hash = computeHash();
+  }
+
+  /** @return hash of the transaction's contents, as set by finalize */
+  public byte[] computeHash() {
     try {
       MessageDigest md = MessageDigest.getInstance("SHA-256");
       md.update(getRawTx());
-      hash = md.digest();
+      return md.digest();
     } catch (NoSuchAlgorithmException x) {
       x.printStackTrace(System.err);
+      return null;
     }
   }
 
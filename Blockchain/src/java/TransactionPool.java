@@ -1,37 +1,744 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
+/**
+ * Pending transactions, indexed by the fee rate (fee per encoded byte) of
+ * their ancestor package: the transaction together with its unconfirmed
+ * ancestors in the pool, which have to be mined with it. A parent paying a
+ * low fee is lifted by a child paying a high one.
+ *
+ * <p> The pool holds at most a budget of encoded bytes. When it is over,
+ * the packages with the lowest descendant fee rate (a transaction together
+ * with its pooled descendants, which can't be mined without it) are evicted
+ * whole. Transactions older than the maximum age expire the same way,
+ * oldest first by the time they were added.
+ *
+ * <p> A transaction is refused if it would have more than
+ * {@link #MAX_ANCESTORS} pooled ancestors or give a pooled transaction more
+ * than {@link #MAX_DESCENDANTS} descendants, itself included in both. This
+ * bounds the package totals updated per change and per transaction
+ * selected.
+ *
+ * <p> Outpoints spent by pooled transactions are indexed, so a double spend
+ * of a pooled coin is found in O(1), and a transaction spending a coin a
+ * pooled one spends is refused.
+ *
+ * <p> The pool is thread-safe. Lookups by hash or outpoint go to concurrent
+ * maps and take no lock, as does {@link #view}. A change locks the stripes
+ * of the transactions whose totals it updates, the transaction with its
+ * pooled ancestors and descendants, so changes to unrelated packages run in
+ * parallel; the fee-rate indexes are concurrent sets keyed by immutable
+ * snapshots of the totals. Selection, expiry and eviction work on the
+ * whole pool and exclude all changes while they run.
+ */
 public class TransactionPool {
 
-  private HashMap<ByteArrayWrapper, Transaction> H;
+  /** default budget of encoded bytes */
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+  /** default age at which transactions expire, in ms */
+  public static final long DEFAULT_MAX_AGE = 14L * 24 * 60 * 60 * 1000;
+
+  /** most pooled ancestors a transaction may have, itself included */
+  public static final int MAX_ANCESTORS = 25;
+  /** most pooled descendants a transaction may have, itself included */
+  public static final int MAX_DESCENDANTS = 25;
+
+  /** number of lock stripes, a power of 2 */
+  public static final int STRIPES = 64;
+
+  private final long maxBytes;
+  private final long maxAge;
+  private final ConcurrentHashMap<ByteArrayWrapper, Entry> H;    // by hash
+  private final ConcurrentSkipListMap<Long, Entry> arrivals;     // by seq, oldest first
+  private final ConcurrentHashMap<UTXO, Entry> spentBy; // outpoint -> pooled spender
+  private final ConcurrentSkipListSet<Rate> byRate;     // best ancestor fee rate first
+  private final ConcurrentSkipListSet<Rate> byDescRate; // worst descendant fee rate first
+  private final ConcurrentSkipListSet<Entry> byTime;    // first added first
+  // changes hold the read side and the stripes of the entries they update;
+  // whole-pool operations hold the write side
+  private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+  private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+  private final AtomicLong seq = new AtomicLong();      // arrival order, breaks ties
+  private final AtomicInteger count = new AtomicInteger();  // pooled transactions
+  private final AtomicLong bytes = new AtomicLong();    // encoded size of pooled transactions
+  private final AtomicLong removed = new AtomicLong();  // removals of any kind so far
+  // written under the write side, read without locking
+  private volatile long evicted, expired;  // transactions dropped so far
+
+  /** per-thread lookup key so outpoint lookups don't allocate a UTXO */
+  private static final ThreadLocal<UTXO> probe = ThreadLocal.withInitial(UTXO::new);
+
+  /** stop selecting after this many packages in a row don't fit */
+  public static final int MAX_SELECT_FAILURES = 1000;
+
+  // a pooled transaction with its in-pool relatives. Relatives and totals
+  // change under the entry's stripe; the lists can be read without it, to
+  // find the stripes to lock
+  static class Entry {
+    final Transaction tx;
+    final long fee;                      // base units
+    final int size;                      // encoded bytes
+    final long time;                     // when it was added, ms
+    final int stripe;
+    long seq;                            // set once, when pooled
+    List<Entry> parents = new CopyOnWriteArrayList<>();
+    final List<Entry> children = new CopyOnWriteArrayList<>();
+    // totals over this transaction and its in-pool ancestors
+    long ancFee;
+    long ancSize;
+    int ancCount;
+    // totals over this transaction and its in-pool descendants
+    long descFee;
+    long descSize;
+    int descCount;
+    Rate ancRate, descRate;              // current keys in the rate indexes
+
+    Entry(Transaction tx, long fee, long time) {
+      this.tx = tx;
+      this.fee = fee;
+      this.size = tx.rawTxLength();
+      this.time = time;
+      stripe = stripe(tx.getHash());
+    }
+  }
+
+  // package totals of an entry as sorted, replaced rather than changed so
+  // the concurrent indexes never see a key move
+  private static final class Rate {
+    final Entry e;
+    final long fee, size;
+    Rate(Entry e, long fee, long size) {
+      this.e = e;
+      this.fee = fee;
+      this.size = size;
+    }
+  }
+
+  // a package whose ancestors are partly in the block being selected
+  private static class Pkg {
+    final Entry e;
+    long fee, size;
+    Pkg(Entry e) {
+      this.e = e;
+      fee = e.ancFee;
+      size = e.ancSize;
+    }
+  }
+
+  private static final Comparator<Rate> BY_ANC_RATE = (a, b) -> {
+    int c = compareRate(b.fee, b.size, a.fee, a.size);
+    return c != 0 ? c : Long.compare(a.e.seq, b.e.seq);
+  };
+
+  private static final Comparator<Rate> BY_DESC_RATE = (a, b) -> {
+    int c = compareRate(a.fee, a.size, b.fee, b.size);
+    return c != 0 ? c : Long.compare(b.e.seq, a.e.seq);
+  };
+
+  private static final Comparator<Entry> BY_TIME = (a, b) -> {
+    int c = Long.compare(a.time, b.time);
+    return c != 0 ? c : Long.compare(a.seq, b.seq);
+  };
+
+  private static final Comparator<Pkg> BY_PKG_RATE = (a, b) -> {
+    int c = compareRate(b.fee, b.size, a.fee, a.size);
+    return c != 0 ? c : Long.compare(a.e.seq, b.e.seq);
+  };
+
+  public TransactionPool(long maxBytes, long maxAge) {
+    this.maxBytes = maxBytes;
+    this.maxAge = maxAge;
+    H = new ConcurrentHashMap<>();
+    arrivals = new ConcurrentSkipListMap<>();
+    byRate = new ConcurrentSkipListSet<>(BY_ANC_RATE);
+    byDescRate = new ConcurrentSkipListSet<>(BY_DESC_RATE);
+    byTime = new ConcurrentSkipListSet<>(BY_TIME);
+    spentBy = new ConcurrentHashMap<>();
+    for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+  }
 
   public TransactionPool() {
-    H = new HashMap<ByteArrayWrapper, Transaction>();
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE);
   }
 
   public TransactionPool(TransactionPool txPool) {
-    H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+    this(txPool.maxBytes, txPool.maxAge);
+    txPool.structure.writeLock().lock();
+    try {
+      // in arrival order, which puts parents before children
+      for (Entry e : txPool.arrivals.values()) add(e.tx, e.fee, e.time);
+      evicted = txPool.evicted;
+      expired = txPool.expired;
+    } finally {
+      txPool.structure.writeLock().unlock();
+    }
+  }
+
+  /** Adds {@code tx} with a fee worked out from its pooled parents only */
+  public boolean addTransaction(Transaction tx) {
+    return addTransaction(tx, (CoinView) null);
+  }
+
+  /**
+   * Adds {@code tx}, working out its fee from the outputs it spends in
+   * {@code coins} or in pooled parents. The fee is 0 if an input can't be
+   * found or the outputs exceed the inputs.
+   * @return true if {@code tx} is in the pool after being added
+   */
+  public boolean addTransaction(Transaction tx, CoinView coins) {
+    return addTransaction(tx, coins, System.currentTimeMillis());
+  }
+
+  /** Like {@link #addTransaction(Transaction, CoinView)}, added at {@code time} (ms) */
+  public boolean addTransaction(Transaction tx, CoinView coins, long time) {
+    if (contains(tx.getHash())) return true;
+    long in = 0;
+    for (Transaction.Input ip : tx.getInputs()) {
+      Transaction.Output op = null;
+      if (coins != null && ip.prevTxHash != null)
+        op = coins.getTxOutput(ip.prevTxHash, ip.outputIndex);
+      if (op == null) op = pooledOutput(ip.prevTxHash, ip.outputIndex);
+      in = Transaction.addUnits(in, op == null ? -1 : op.getAmount());
+    }
+    long out = 0;
+    for (Transaction.Output op : tx.getOutputs())
+      out = Transaction.addUnits(out, op.getAmount());
+    return addTransaction(tx, in < 0 || out < 0 || out > in ? 0 : in - out, time);
+  }
+
+  /**
+   * Adds {@code tx}, paying {@code fee} base units, unless it would break
+   * the package limits or spends a coin a pooled transaction spends. If the
+   * pool goes over its byte budget the lowest paying packages are evicted,
+   * which may be the one {@code tx} joined.
+   * @return true if {@code tx} is in the pool after being added
+   */
+  public boolean addTransaction(Transaction tx, long fee) {
+    return addTransaction(tx, fee, System.currentTimeMillis());
   }
 
-  public void addTransaction(Transaction tx) {
-    ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-    H.put(hash, tx);
+  /** Like {@link #addTransaction(Transaction, long)}, added at {@code time} (ms) */
+  public boolean addTransaction(Transaction tx, long fee, long time) {
+    if (add(tx, fee, time) == null) return false;
+    if (bytes.get() > maxBytes) {
+      structure.writeLock().lock();
+      try {
+        while (bytes.get() > maxBytes)
+          evict(byDescRate.first().e);
+      } finally {
+        structure.writeLock().unlock();
+      }
+    }
+    return contains(tx.getHash());
   }
 
+  // the pooled entry of tx, or null if it breaks the package limits or
+  // spends a coin already spent in the pool
+  private Entry add(Transaction tx, long fee, long time) {
+    // duplicates are found without copying the hash
+    Entry e = entry(tx.getHash());
+    if (e != null)
+      return e;
+    Entry n = new Entry(tx, Math.max(fee, 0), time);
+    structure.readLock().lock();
+    boolean[] held = null;
+    try {
+      held = lockStripes(() -> {
+          n.parents = pooledParents(tx);
+          LinkedHashSet<Entry> t = ancestors(n);
+          t.add(n);
+          return t;
+        });
+      e = entry(tx.getHash());           // added meanwhile
+      if (e != null)
+        return e;
+      LinkedHashSet<Entry> anc = ancestors(n);
+      if (anc.size() + 1 > MAX_ANCESTORS) return null;
+      for (Entry a : anc)
+        if (a.descCount + 1 > MAX_DESCENDANTS) return null;
+      if (!claimOutpoints(n)) return null;
+      link(n, anc);
+      return n;
+    } finally {
+      if (held != null) unlock(held);
+      structure.readLock().unlock();
+    }
+  }
+
+  // pooled transactions tx spends outputs of
+  private List<Entry> pooledParents(Transaction tx) {
+    CopyOnWriteArrayList<Entry> res = new CopyOnWriteArrayList<>();
+    for (Transaction.Input in : tx.getInputs()) {
+      Entry p = in.prevTxHash == null ? null : entry(in.prevTxHash);
+      if (p != null) res.addIfAbsent(p);
+    }
+    return res;
+  }
+
+  // index n as the spender of its outpoints, or undo that and return false
+  // if a pooled transaction spends one of them
+  private boolean claimOutpoints(Entry n) {
+    ArrayList<UTXO> claimed = new ArrayList<>();
+    for (Transaction.Input in : n.tx.getInputs()) {
+      if (in.prevTxHash == null) continue;
+      UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
+      Entry s = spentBy.putIfAbsent(u, n);
+      if (s == null) {
+        claimed.add(u);
+      } else if (s != n) {
+        for (UTXO c : claimed) spentBy.remove(c, n);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // pool n, whose stripe and ancestors' stripes are held; it is found by
+  // hash only once linked
+  private void link(Entry n, LinkedHashSet<Entry> anc) {
+    n.seq = seq.getAndIncrement();
+    for (Entry p : n.parents) p.children.add(n);
+    n.ancFee = n.fee;
+    n.ancSize = n.size;
+    n.ancCount = 1;
+    n.descFee = n.fee;
+    n.descSize = n.size;
+    n.descCount = 1;
+    for (Entry a : anc) {
+      n.ancFee += a.fee;
+      n.ancSize += a.size;
+      n.ancCount++;
+      addToDesc(a, n.fee, n.size, 1);
+    }
+    n.ancRate = new Rate(n, n.ancFee, n.ancSize);
+    n.descRate = new Rate(n, n.descFee, n.descSize);
+    byRate.add(n.ancRate);
+    byDescRate.add(n.descRate);
+    byTime.add(n);
+    arrivals.put(n.seq, n);
+    bytes.addAndGet(n.size);
+    count.incrementAndGet();
+    H.put(new ByteArrayWrapper(n.tx.getHash()), n);
+  }
+
+  // add to the ancestor package totals of e, re-keying it
+  private void addToAnc(Entry e, long fee, long size, int n) {
+    byRate.remove(e.ancRate);
+    e.ancFee += fee;
+    e.ancSize += size;
+    e.ancCount += n;
+    e.ancRate = new Rate(e, e.ancFee, e.ancSize);
+    byRate.add(e.ancRate);
+  }
+
+  // add to the descendant package totals of e, re-keying it
+  private void addToDesc(Entry e, long fee, long size, int n) {
+    byDescRate.remove(e.descRate);
+    e.descFee += fee;
+    e.descSize += size;
+    e.descCount += n;
+    e.descRate = new Rate(e, e.descFee, e.descSize);
+    byDescRate.add(e.descRate);
+  }
+
+  /**
+   * Removes the transaction, as when it is mined: its pooled descendants
+   * stay, no longer counting it in their packages.
+   */
   public void removeTransaction(byte[] txHash) {
-    ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-    H.remove(hash);
+    Entry e = entry(txHash);
+    if (e == null) return;
+    structure.readLock().lock();
+    boolean[] held = null;
+    try {
+      held = lockStripes(() -> {
+          LinkedHashSet<Entry> t = ancestors(e);
+          t.addAll(descendants(e));
+          t.add(e);
+          return t;
+        });
+      if (entry(txHash) == e) unlink(e);
+    } finally {
+      if (held != null) unlock(held);
+      structure.readLock().unlock();
+    }
+  }
+
+  /** Removes the transaction together with its pooled descendants */
+  public void removeWithDescendants(byte[] txHash) {
+    Entry e = entry(txHash);
+    if (e != null) dropLocking(e);
+  }
+
+  /**
+   * Removes the pooled transactions spending coins that {@code tx} spends,
+   * as when {@code tx} is mined, with their descendants.
+   * @return number of transactions removed
+   */
+  public int removeConflicts(Transaction tx) {
+    int n = 0;
+    for (Transaction.Input in : tx.getInputs()) {
+      Transaction s = getSpender(in.prevTxHash, in.outputIndex);
+      Entry e = s == null || s == tx ? null : entry(s.getHash());
+      if (e != null) n += dropLocking(e);
+    }
+    return n;
+  }
+
+  /**
+   * @return the pooled transaction spending output {@code index} of
+   *         transaction {@code txHash}, or null
+   */
+  public Transaction getSpender(byte[] txHash, int index) {
+    if (txHash == null) return null;
+    UTXO key = probe.get().set(txHash, index);
+    Entry e = spentBy.get(key);
+    key.set(null, 0);
+    return e == null ? null : e.tx;
+  }
+
+  /**
+   * @return coins available to {@code spender}: outputs in {@code confirmed}
+   *         or created by pooled transactions, less those spent by other
+   *         pooled transactions. A null {@code spender} is a transaction
+   *         not in the pool.
+   */
+  public CoinView coinsFor(CoinView confirmed, Transaction spender) {
+    return (h, i) -> {
+      Transaction s = getSpender(h, i);
+      if (s != null && s != spender) return null;
+      Transaction.Output op = confirmed.getTxOutput(h, i);
+      return op != null ? op : pooledOutput(h, i);
+    };
+  }
+
+  /**
+   * Drops transactions added more than the maximum age before {@code now}
+   * (ms), oldest first, with their descendants.
+   */
+  public void expire(long now) {
+    Entry f = oldest();
+    if (f == null || now - f.time <= maxAge) return;   // without locking
+    structure.writeLock().lock();
+    try {
+      while ((f = oldest()) != null && now - f.time > maxAge)
+        expired += drop(f);
+    } finally {
+      structure.writeLock().unlock();
+    }
+  }
+
+  // first added pooled entry, or null
+  private Entry oldest() {
+    Iterator<Entry> it = byTime.iterator();
+    return it.hasNext() ? it.next() : null;
+  }
+
+  // drop the package of e and its descendants, under the write side
+  private void evict(Entry e) {
+    evicted += drop(e);
+  }
+
+  // drop e and its descendants, locking the stripes of all they touch
+  private int dropLocking(Entry e) {
+    structure.readLock().lock();
+    boolean[] held = null;
+    try {
+      held = lockStripes(() -> {
+          LinkedHashSet<Entry> t = descendants(e);
+          t.add(e);
+          for (Entry x : new ArrayList<>(t)) t.addAll(ancestors(x));
+          return t;
+        });
+      return entry(e.tx.getHash()) == e ? drop(e) : 0;
+    } finally {
+      if (held != null) unlock(held);
+      structure.readLock().unlock();
+    }
+  }
+
+  // remove e and its descendants, deepest first
+  private int drop(Entry e) {
+    ArrayList<Entry> pkg = new ArrayList<>(descendants(e));
+    pkg.add(e);
+    pkg.sort(Comparator.comparingInt((Entry x) -> x.ancCount).reversed());
+    for (Entry x : pkg) unlink(x);
+    return pkg.size();
+  }
+
+  // remove e, taking it out of its relatives' package totals
+  private void unlink(Entry e) {
+    H.remove(ByteArrayWrapper.wrap(e.tx.getHash()));
+    arrivals.remove(e.seq);
+    byRate.remove(e.ancRate);
+    byDescRate.remove(e.descRate);
+    byTime.remove(e);
+    bytes.addAndGet(-e.size);
+    count.decrementAndGet();
+    removed.incrementAndGet();
+    UTXO key = probe.get();
+    for (Transaction.Input in : e.tx.getInputs())
+      if (in.prevTxHash != null)
+        spentBy.remove(key.set(in.prevTxHash, in.outputIndex), e);
+    key.set(null, 0);
+    for (Entry d : descendants(e))
+      addToAnc(d, -e.fee, -e.size, -1);
+    for (Entry a : ancestors(e))
+      addToDesc(a, -e.fee, -e.size, -1);
+    for (Entry p : e.parents) p.children.remove(e);
+    for (Entry c : e.children) c.parents.remove(e);
+  }
+
+  /**
+   * Locks the stripes of the entries {@code touched} returns, in stripe
+   * order so threads can't deadlock. Relatives can change until their
+   * stripes are held, so the entries are listed again once locked, and the
+   * locking retried if they moved to stripes not held.
+   * @return the stripes held
+   */
+  private boolean[] lockStripes(Supplier<Collection<Entry>> touched) {
+    while (true) {
+      boolean[] held = new boolean[STRIPES];
+      for (Entry x : touched.get()) held[x.stripe] = true;
+      for (int i = 0; i < STRIPES; i++)
+        if (held[i]) stripes[i].lock();
+      boolean covered = true;
+      for (Entry x : touched.get()) covered &= held[x.stripe];
+      if (covered) return held;
+      unlock(held);
+    }
+  }
+
+  private void unlock(boolean[] held) {
+    for (int i = STRIPES - 1; i >= 0; i--)
+      if (held[i]) stripes[i].unlock();
+  }
+
+  // lock stripe of a transaction hash
+  private static int stripe(byte[] txHash) {
+    int h = 0;
+    for (int i = 0; i < txHash.length && i < 4; i++)
+      h = (h << 8) | (txHash[i] & 0xff);
+    return h & (STRIPES - 1);
   }
 
   public Transaction getTransaction(byte[] txHash) {
-    ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-    return H.get(hash);
+    Entry e = entry(txHash);
+    return e == null ? null : e.tx;
   }
 
+  public boolean contains(byte[] txHash) {
+    return txHash != null && entry(txHash) != null;
+  }
+
+  /** @return when the pooled transaction was added (ms), or -1 */
+  public long getTime(byte[] txHash) {
+    Entry e = entry(txHash);
+    return e == null ? -1 : e.time;
+  }
+
+  /** @return fee in base units paid by the pooled transaction, or -1 */
+  public long getFee(byte[] txHash) {
+    Entry e = entry(txHash);
+    return e == null ? -1 : e.fee;
+  }
+
+  public int size() {
+    return count.get();
+  }
+
+  /** @return encoded size of the pooled transactions */
+  public long bytes() {
+    return bytes.get();
+  }
+
+  /** @return number of transactions evicted to stay within the byte budget */
+  public long evictedCount() {
+    return evicted;
+  }
+
+  /**
+   * @return number of transactions removed so far for any reason, which
+   *         changes whenever a transaction leaves the pool
+   */
+  public long removedCount() {
+    return removed.get();
+  }
+
+  /** @return number of transactions dropped for their age */
+  public long expiredCount() {
+    return expired;
+  }
+
+  /** @return a copy of the pooled transactions in arrival order */
   public ArrayList<Transaction> getTransactions() {
     ArrayList<Transaction> T = new ArrayList<Transaction>();
-    for (Transaction tx : H.values())
-      T.add(tx);
+    for (Transaction t : view())
+      T.add(t);
     return T;
   }
+
+  /**
+   * @return the pooled transactions in arrival order, which puts parents
+   *         before children, read from the pool as it changes: iterating
+   *         neither copies the pool nor blocks writers. Transactions pooled
+   *         throughout are seen once; ones added or removed meanwhile may
+   *         or may not be.
+   */
+  public Iterable<Transaction> view() {
+    return () -> new Iterator<Transaction>() {
+        private final Iterator<Entry> it = arrivals.values().iterator();
+
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        public Transaction next() {
+          return it.next().tx;
+        }
+      };
+  }
+
+  /**
+   * Selects transactions for a block of at most {@code maxBytes} encoded
+   * bytes, best ancestor package fee rate first. A package is taken whole,
+   * and packages left behind are re-rated without the ancestors already
+   * taken. The package limits bound the relatives re-rated per transaction
+   * taken, so this takes O(k log n) for k selected transactions. Changes
+   * wait until it is done.
+   * @return the selected transactions, parents before children
+   */
+  public ArrayList<Transaction> selectTransactions(long maxBytes) {
+    structure.writeLock().lock();
+    try {
+      return select(maxBytes);
+    } finally {
+      structure.writeLock().unlock();
+    }
+  }
+
+  private ArrayList<Transaction> select(long maxBytes) {
+    ArrayList<Transaction> res = new ArrayList<>();
+    HashSet<Entry> taken = new HashSet<>();
+    HashMap<Entry, Pkg> modified = new HashMap<>();
+    TreeSet<Pkg> modByRate = new TreeSet<>(BY_PKG_RATE);
+    Iterator<Rate> it = byRate.iterator();
+    Entry next = null;
+    long bytes = 0;
+    int failures = 0;
+    while (failures < MAX_SELECT_FAILURES) {
+      // next unmodified package not yet taken
+      while (next == null || taken.contains(next) || modified.containsKey(next)) {
+        if (!it.hasNext()) { next = null; break; }
+        next = it.next().e;
+      }
+      Pkg m = modByRate.isEmpty() ? null : modByRate.first();
+      if (next == null && m == null) break;
+
+      Entry e;
+      long pkgSize;
+      if (m != null && (next == null
+                        || compareRate(m.fee, m.size, next.ancFee, next.ancSize) >= 0)) {
+        modByRate.pollFirst();
+        e = m.e;
+        pkgSize = m.size;
+      } else {
+        e = next;
+        pkgSize = e.ancSize;
+        next = null;
+      }
+      if (bytes + pkgSize > maxBytes) {
+        // try smaller packages, marking this one so it isn't picked again
+        failures++;
+        modified.putIfAbsent(e, new Pkg(e));
+        continue;
+      }
+      failures = 0;
+
+      // take the package, ancestors first
+      ArrayList<Entry> pkg = new ArrayList<>();
+      for (Entry a : ancestors(e))
+        if (!taken.contains(a)) pkg.add(a);
+      pkg.add(e);
+      pkg.sort(Comparator.comparingInt(x -> x.ancCount));
+      for (Entry x : pkg) {
+        taken.add(x);
+        res.add(x.tx);
+        bytes += x.size;
+        Pkg px = modified.remove(x);
+        if (px != null) modByRate.remove(px);
+      }
+      // re-rate descendants without what was taken
+      for (Entry x : pkg)
+        for (Entry d : descendants(x)) {
+          if (taken.contains(d)) continue;
+          Pkg pd = modified.get(d);
+          if (pd == null) modified.put(d, pd = new Pkg(d));
+          else modByRate.remove(pd);
+          pd.fee -= x.fee;
+          pd.size -= x.size;
+          modByRate.add(pd);
+        }
+    }
+    return res;
+  }
+
+  // pooled entry of txHash, or null
+  private Entry entry(byte[] txHash) {
+    return H.get(ByteArrayWrapper.wrap(txHash));
+  }
+
+  // output index of a pooled transaction, or null
+  private Transaction.Output pooledOutput(byte[] txHash, int index) {
+    Entry p = txHash == null ? null : entry(txHash);
+    return p == null || index < 0 || index >= p.tx.numOutputs()
+      ? null : p.tx.getOutput(index);
+  }
+
+  // in-pool ancestors of e
+  static LinkedHashSet<Entry> ancestors(Entry e) {
+    return closure(e, true);
+  }
+
+  // in-pool descendants of e
+  static LinkedHashSet<Entry> descendants(Entry e) {
+    return closure(e, false);
+  }
+
+  private static LinkedHashSet<Entry> closure(Entry e, boolean up) {
+    LinkedHashSet<Entry> res = new LinkedHashSet<>();
+    ArrayDeque<Entry> work = new ArrayDeque<>();
+    work.add(e);
+    while (!work.isEmpty())
+      for (Entry r : up ? work.poll().parents : work.poll().children)
+        if (res.add(r)) work.add(r);
+    return res;
+  }
+
+  /**
+   * @return sign of {@code f1 / s1 - f2 / s2} for non-negative fees and
+   *         sizes, compared exactly as 128-bit products
+   */
+  static int compareRate(long f1, long s1, long f2, long s2) {
+    long h1 = Math.multiplyHigh(f1, s2), h2 = Math.multiplyHigh(f2, s1);
+    if (h1 != h2) return Long.compare(h1, h2);
+    return Long.compareUnsigned(f1 * s2, f2 * s1);
+  }
 }
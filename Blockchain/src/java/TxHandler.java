@@ -1,5 +1,6 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 
 public class TxHandler {
   UTXOPool pool;                         // available outputs to claim by inputs
@@ -28,37 +29,15 @@ public class TxHandler {
    *     the sum of its output values; and false otherwise.
    */
   public boolean isValidTx(Transaction tx) {
-    HashSet<UTXO> seen = new HashSet<>();
-    double sumOut = 0, sumIn = 0;
-
-    int i = 0;
-    for (Transaction.Input in : tx.getInputs()) {
-      UTXO coin = new UTXO(in.prevTxHash, in.outputIndex);
-
-      // (1) coin is in available pool
-      if (!pool.contains(coin)) return false;
-
-      // (2) valid signatures: owner of coin has signed this transaction
-      Transaction.Output txout = pool.getTxOutput(coin);
-      byte[] msg = tx.getRawDataToSign(i);
-      if (!Crypto.verifySignature(txout.address, msg, in.signature))
-        return false;
-            
-      // (3) unique coins being used in this transaction
-      if (seen.contains(coin)) return false;
-      seen.add(coin);
-      sumIn += txout.value;
-
-      i += 1;
-    }
+    return TxValidator.isValid(tx, pool);
+  }
 
-    // (4) values >= 0
-    for (Transaction.Output o : tx.getOutputs()) {
-      if (o.value < 0) return false;
-      sumOut += o.value;
-    }
-    // (5) input value must be at least output value
-    return sumIn >= sumOut;
+  /**
+   * Validates {@code tx} cheapest checks first, see {@link TxValidator}.
+   * @return the stage {@code tx} was rejected at, or null if it is valid
+   */
+  public TxValidator.Stage checkTx(Transaction tx) {
+    return TxValidator.check(tx, pool);
   }
 
   /**
@@ -72,15 +51,75 @@ public class TxHandler {
     for (Transaction t : possibleTxs) {
       if (!isValidTx(t)) continue;
       txs.add(t);
+      apply(t);
+    }
+    Transaction[] res = new Transaction[txs.size()];
+    return txs.toArray(res);
+  }
+
+  // update pool with accepted transaction t
+  private void apply(Transaction t) {
+    // remove used coins from available pool
+    for (int i = 0; i < t.numInputs(); i++) {
+      Transaction.Input in = t.getInput(i);
+      pool.removeUTXO(in.prevTxHash, in.outputIndex);
+    }
 
-      // remove used coins from available pool
-      for (Transaction.Input in : t.getInputs())
-        pool.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+    // add new coins resulting from transction
+    byte[] h = t.getHash();
+    for (int i = 0; i < t.numOutputs(); i++)
+      pool.addUTXO(new UTXO(h, i), t.getOutput(i));
+  }
 
-      // add new coins resulting from transction
-      byte[] h = t.getHash();
-      for (int i = 0; i < t.numOutputs(); i++)
-        pool.addUTXO(new UTXO(h, i), t.getOutput(i));
+  /**
+   * Like {@link #handleTxs} but independent of the order of
+   * {@code possibleTxs}: a transaction spending outputs of another proposed
+   * transaction is considered after its parent, wherever it appears. The
+   * result is ordered parents first. Runs in O(n + edges), where edges are
+   * the inputs claiming outputs of other proposed transactions.
+   */
+  public Transaction[] handleTxsUnordered(Transaction[] possibleTxs) {
+    int n = possibleTxs.length;
+    // index proposed transactions by the outputs they create
+    HashMap<ByteArrayWrapper, Integer> creator = new HashMap<>(2 * n);
+    for (int i = 0; i < n; i++) {
+      byte[] h = possibleTxs[i].getHash();
+      if (h != null) creator.putIfAbsent(new ByteArrayWrapper(h), i);
+    }
+
+    // edges parent -> child, counting each parent once per child
+    int[] pending = new int[n];                // unprocessed parents
+    ArrayList<ArrayList<Integer>> children = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) children.add(null);
+    for (int i = 0; i < n; i++) {
+      Transaction t = possibleTxs[i];
+      for (int k = 0; k < t.numInputs(); k++) {
+        byte[] h = t.getInput(k).prevTxHash;
+        Integer p = h == null ? null : creator.get(new ByteArrayWrapper(h));
+        if (p == null || p == i) continue;
+        ArrayList<Integer> cs = children.get(p);
+        if (cs == null) children.set(p, cs = new ArrayList<>());
+        if (!cs.isEmpty() && cs.get(cs.size() - 1) == i) continue;
+        cs.add(i);
+        pending[i]++;
+      }
+    }
+
+    // Kahn's algorithm, validating each transaction once its parents are done
+    ArrayDeque<Integer> ready = new ArrayDeque<>();
+    for (int i = 0; i < n; i++)
+      if (pending[i] == 0) ready.add(i);
+    ArrayList<Transaction> txs = new ArrayList<>();
+    while (!ready.isEmpty()) {
+      int i = ready.poll();
+      Transaction t = possibleTxs[i];
+      if (isValidTx(t)) {
+        txs.add(t);
+        apply(t);
+      }
+      if (children.get(i) != null)
+        for (int c : children.get(i))
+          if (--pending[c] == 0) ready.add(c);
     }
     Transaction[] res = new Transaction[txs.size()];
     return txs.toArray(res);
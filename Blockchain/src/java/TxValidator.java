@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Transaction validation that doesn't allocate on the common path: coins
+ * are looked up by outpoint without building UTXOs, duplicate inputs are
+ * found by sorting primitive keys, and the signed data is written into a
+ * buffer reused by the calling thread.
+ *
+ * <p> Checks run in stages ordered by cost, so junk transactions are
+ * rejected before any signature is verified. Rejections are counted per
+ * stage.
+ */
+public class TxValidator {
+
+  /** validation stages in the order they run, also the rejection reason */
+  public enum Stage {
+    STRUCTURE,   // missing input fields, negative or overflowing outputs
+    DUPLICATE,   // a coin is claimed more than once
+    UTXO,        // a claimed coin isn't in the pool
+    BALANCE,     // inputs don't cover outputs
+    SIGNATURE    // an input isn't signed by the owner of its coin
+  }
+
+  private static final Stage[] stages = Stage.values();
+  private static final LongAdder checked = new LongAdder();
+  private static final LongAdder[] rejected = new LongAdder[stages.length];
+  static {
+    for (int i = 0; i < rejected.length; i++) rejected[i] = new LongAdder();
+  }
+
+  // scratch space reused by each thread across calls
+  private static final class Scratch {
+    long[] keys = new long[16];          // input fingerprint | input index
+    byte[] msg = new byte[1024];         // data signed by an input
+    HashSet<UTXO> seen = new HashSet<>(); // inputs beyond MAX_SORTED
+  }
+
+  private static final ThreadLocal<Scratch> scratch =
+    ThreadLocal.withInitial(Scratch::new);
+
+  /** transactions with at least this many inputs verify them in parallel */
+  public static final int PARALLEL_SIGNATURES = 8;
+
+  // input indices must fit in the low bits of a sort key
+  private static final int INDEX_BITS = 16;
+  private static final int MAX_SORTED = 1 << INDEX_BITS;
+
+  /**
+   * @return true if {@code tx} is valid against the coins in {@code pool}, see
+   *         {@link TxHandler#isValidTx}
+   */
+  public static boolean isValid(Transaction tx, CoinView pool) {
+    return check(tx, pool) == null;
+  }
+
+  /**
+   * Validates {@code tx} against {@code pool}, stopping at the first stage
+   * that fails.
+   * @return the stage {@code tx} was rejected at, or null if it is valid
+   */
+  public static Stage check(Transaction tx, CoinView pool) {
+    return check(tx, pool, null);
+  }
+
+  /**
+   * Like {@link #check(Transaction, CoinView)}, verifying the signatures of a
+   * transaction with many inputs concurrently on {@code workers}.
+   */
+  public static Stage check(Transaction tx, CoinView pool, ForkJoinPool workers) {
+    checked.increment();
+    Stage res = runStages(tx, pool, workers, true);
+    if (res != null) rejected[res.ordinal()].increment();
+    return res;
+  }
+
+  /**
+   * Runs every stage but {@link Stage#SIGNATURE}, for transactions whose
+   * signatures were verified already, see {@link #verifySignatures}.
+   * @return the stage {@code tx} was rejected at, or null
+   */
+  public static Stage checkWithoutSignatures(Transaction tx, CoinView pool) {
+    checked.increment();
+    Stage res = runStages(tx, pool, null, false);
+    if (res != null) rejected[res.ordinal()].increment();
+    return res;
+  }
+
+  /**
+   * @return true if every input of {@code tx} is signed by the owner of the
+   *         coin it claims in {@code coins}, which only has to know the
+   *         coins, spent or not
+   */
+  public static boolean verifySignatures(Transaction tx, CoinView coins) {
+    for (int i = 0; i < tx.numInputs(); i++) {
+      Transaction.Input in = tx.getInput(i);
+      if (in.prevTxHash == null || in.signature == null
+          || coins.getTxOutput(in.prevTxHash, in.outputIndex) == null
+          || !signed(tx, i, coins))
+        return false;
+    }
+    return true;
+  }
+
+  /** @return number of transactions checked since the last reset */
+  public static long checkedCount() {
+    return checked.sum();
+  }
+
+  /** @return number of transactions rejected at {@code stage} */
+  public static long rejectedCount(Stage stage) {
+    return rejected[stage.ordinal()].sum();
+  }
+
+  public static void resetCounters() {
+    checked.reset();
+    for (LongAdder r : rejected) r.reset();
+  }
+
+  private static Stage runStages(Transaction tx, CoinView pool,
+                                 ForkJoinPool workers, boolean signatures) {
+    Scratch s = scratch.get();
+    int n = tx.numInputs();
+
+    // (4) values >= 0, along with inputs being well formed
+    for (int i = 0; i < n; i++) {
+      Transaction.Input in = tx.getInput(i);
+      if (in.prevTxHash == null || in.signature == null) return Stage.STRUCTURE;
+    }
+    long sumOut = 0;
+    for (int i = 0; i < tx.numOutputs(); i++) {
+      sumOut = Transaction.addUnits(sumOut, tx.getOutput(i).getAmount());
+      if (sumOut < 0) return Stage.STRUCTURE;
+    }
+
+    // (3) unique coins being used in this transaction
+    if (hasDuplicateInputs(tx, s)) return Stage.DUPLICATE;
+
+    // (1) coins are in available pool, and
+    // (5) input value must be at least output value
+    long sumIn = 0;
+    for (int i = 0; i < n; i++) {
+      Transaction.Input in = tx.getInput(i);
+      Transaction.Output txout = pool.getTxOutput(in.prevTxHash, in.outputIndex);
+      if (txout == null) return Stage.UTXO;
+      sumIn = Transaction.addUnits(sumIn, txout.getAmount());
+      if (sumIn < 0) return Stage.BALANCE;  // overflow
+    }
+    if (sumIn < sumOut) return Stage.BALANCE;
+    if (!signatures) return null;
+
+    // (2) valid signatures: owner of coin has signed this transaction
+    if (workers != null && n >= PARALLEL_SIGNATURES) {
+      boolean ok = workers.submit(() -> IntStream.range(0, n).parallel()
+                                  .allMatch(i -> signed(tx, i, pool))).join();
+      return ok ? null : Stage.SIGNATURE;
+    }
+    for (int i = 0; i < n; i++)
+      if (!signed(tx, i, pool)) return Stage.SIGNATURE;
+    return null;
+  }
+
+  // input i is signed by the owner of the coin it claims
+  private static boolean signed(Transaction tx, int i, CoinView pool) {
+    Scratch s = scratch.get();
+    Transaction.Input in = tx.getInput(i);
+    Transaction.Output txout = pool.getTxOutput(in.prevTxHash, in.outputIndex);
+    int len = tx.rawDataToSignLength(i);
+    if (s.msg.length < len) s.msg = new byte[Math.max(len, 2 * s.msg.length)];
+    tx.getRawDataToSign(i, s.msg);
+    return Crypto.verifySignature(txout.getAddress(), s.msg, len, in.signature);
+  }
+
+  /** @return true if some coin is claimed more than once by {@code tx} */
+  public static boolean hasDuplicateInputs(Transaction tx) {
+    return hasDuplicateInputs(tx, scratch.get());
+  }
+
+  private static boolean hasDuplicateInputs(Transaction tx, Scratch s) {
+    int n = tx.numInputs();
+    if (n < 2) return false;
+    if (n > MAX_SORTED) return hasDuplicateInputsLarge(tx, s.seen);
+
+    // sort fingerprints, only equal fingerprints need a full comparison
+    if (s.keys.length < n) s.keys = new long[Math.max(n, 2 * s.keys.length)];
+    long[] keys = s.keys;
+    for (int i = 0; i < n; i++)
+      keys[i] = (fingerprint(tx.getInput(i)) << INDEX_BITS) | i;
+    Arrays.sort(keys, 0, n);
+
+    long mask = (1L << INDEX_BITS) - 1;
+    for (int lo = 0, hi; lo < n; lo = hi) {
+      long fp = keys[lo] >>> INDEX_BITS;
+      for (hi = lo + 1; hi < n && keys[hi] >>> INDEX_BITS == fp; hi++)
+        ;
+      for (int a = lo; a < hi; a++)
+        for (int b = a + 1; b < hi; b++)
+          if (sameCoin(tx.getInput((int) (keys[a] & mask)),
+                       tx.getInput((int) (keys[b] & mask))))
+            return true;
+    }
+    return false;
+  }
+
+  private static boolean hasDuplicateInputsLarge(Transaction tx,
+                                                 HashSet<UTXO> seen) {
+    seen.clear();
+    try {
+      for (int i = 0; i < tx.numInputs(); i++) {
+        Transaction.Input in = tx.getInput(i);
+        if (!seen.add(new UTXO(in.prevTxHash, in.outputIndex))) return true;
+      }
+      return false;
+    } finally {
+      seen.clear();
+    }
+  }
+
+  // 48-bit hash of an input's outpoint
+  private static long fingerprint(Transaction.Input in) {
+    long h = in.outputIndex * 0x9E3779B97F4A7C15L;
+    for (byte b : in.prevTxHash)
+      h = (h ^ (b & 0xff)) * 0x100000001B3L;
+    return h >>> INDEX_BITS;
+  }
+
+  private static boolean sameCoin(Transaction.Input a, Transaction.Input b) {
+    return a.outputIndex == b.outputIndex
+      && Arrays.equals(a.prevTxHash, b.prevTxHash);
+  }
+}
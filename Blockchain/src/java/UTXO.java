@@ -17,6 +17,20 @@ public class UTXO implements Comparable<UTXO> {
     this.index = index;
   }
 
+  // empty lookup key, see set
+  UTXO() {
+  }
+
+  /**
+   * Repoints this UTXO at {@code txHash} without copying it. Only for
+   * reusable lookup keys that are never stored in a pool.
+   */
+  UTXO set(byte[] txHash, int index) {
+    this.txHash = txHash;
+    this.index = index;
+    return this;
+  }
+
   /** @return the transaction hash of this UTXO */
   public byte[] getTxHash() {
     return txHash;
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * The coins a block spends and creates, held in parallel arrays instead of
+ * one UTXO per change. Outpoint hashes reference the transactions' own hash
+ * arrays, they aren't copied. Applied to a pool in one pass with
+ * {@link UTXOPool#applyDelta}.
+ */
+public class UTXODelta {
+  int nSpent, nCreated;
+  byte[][] spentHash = new byte[16][];
+  int[] spentIndex = new int[16];
+  byte[][] createdHash = new byte[16][];
+  int[] createdIndex = new int[16];
+  Transaction.Output[] createdOutput = new Transaction.Output[16];
+
+  /** @return the changes made by applying {@code txs} in order */
+  public static UTXODelta of(Transaction[] txs) {
+    UTXODelta d = new UTXODelta();
+    for (Transaction t : txs) d.add(t);
+    return d;
+  }
+
+  /** Records the coins spent and created by {@code tx} */
+  public void add(Transaction tx) {
+    for (int i = 0; i < tx.numInputs(); i++) {
+      Transaction.Input in = tx.getInput(i);
+      spend(in.prevTxHash, in.outputIndex);
+    }
+    byte[] h = tx.getHash();
+    for (int i = 0; i < tx.numOutputs(); i++)
+      create(h, i, tx.getOutput(i));
+  }
+
+  /** Records output {@code index} of transaction {@code txHash} as spent */
+  public void spend(byte[] txHash, int index) {
+    if (nSpent == spentIndex.length) {
+      spentHash = Arrays.copyOf(spentHash, 2 * nSpent);
+      spentIndex = Arrays.copyOf(spentIndex, 2 * nSpent);
+    }
+    spentHash[nSpent] = txHash;
+    spentIndex[nSpent++] = index;
+  }
+
+  /** Records {@code out} as output {@code index} of transaction {@code txHash} */
+  public void create(byte[] txHash, int index, Transaction.Output out) {
+    if (nCreated == createdIndex.length) {
+      createdHash = Arrays.copyOf(createdHash, 2 * nCreated);
+      createdIndex = Arrays.copyOf(createdIndex, 2 * nCreated);
+      createdOutput = Arrays.copyOf(createdOutput, 2 * nCreated);
+    }
+    createdHash[nCreated] = txHash;
+    createdIndex[nCreated] = index;
+    createdOutput[nCreated++] = out;
+  }
+
+  public int numSpent() {
+    return nSpent;
+  }
+
+  public int numCreated() {
+    return nCreated;
+  }
+
+  /**
+   * What applying a delta changed, per pool shard: the coins it removed with
+   * their outputs and the coins it added, with the outputs they replaced
+   * (null if the coin was new). Reverted with {@link UTXOPool#undo}.
+   */
+  public static class Undo {
+    UTXO[][] removed;
+    Transaction.Output[][] removedOutput;
+    UTXO[][] added;
+    Transaction.Output[][] replacedOutput;
+
+    Undo(int shards) {
+      removed = new UTXO[shards][];
+      removedOutput = new Transaction.Output[shards][];
+      added = new UTXO[shards][];
+      replacedOutput = new Transaction.Output[shards][];
+    }
+  }
+}
@@ -1,34 +1,200 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
-public class UTXOPool {
+public class UTXOPool implements CoinView {
+
+  /** number of shards, a power of 2 */
+  public static final int SHARDS = 16;
+  /** deltas with fewer spends and creates than this are applied serially */
+  public static final int PARALLEL_THRESHOLD = 512;
 
   /**
    * The current collection of UTXOs, with each one mapped to its corresponding
-   * transaction output
+   * transaction output, partitioned into shards by outpoint
    */
-  private HashMap<UTXO, Transaction.Output> H;
+  private HashMap<UTXO, Transaction.Output>[] H;
+  private int[] cap;                    // known table size of each shard
+  private final boolean readOnly;       // a view, see readOnlyView
+
+  /** per-thread lookup key so outpoint lookups don't allocate a UTXO */
+  private static final ThreadLocal<UTXO> probe = ThreadLocal.withInitial(UTXO::new);
 
   /** Creates a new empty UTXOPool */
+  @SuppressWarnings({"unchecked", "rawtypes"})
   public UTXOPool() {
-    H = new HashMap<UTXO, Transaction.Output>();
+    H = new HashMap[SHARDS];
+    cap = new int[SHARDS];
+    for (int i = 0; i < SHARDS; i++)
+      H[i] = new HashMap<UTXO, Transaction.Output>();
+    readOnly = false;
   }
 
   /** Creates a new UTXOPool that is a copy of {@code uPool} */
+  @SuppressWarnings({"unchecked", "rawtypes"})
   public UTXOPool(UTXOPool uPool) {
-    H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+    H = new HashMap[SHARDS];
+    cap = new int[SHARDS];
+    IntStream is = IntStream.range(0, SHARDS);
+    if (uPool.size() >= PARALLEL_THRESHOLD) is = is.parallel();
+    is.forEach(i -> H[i] = new HashMap<UTXO, Transaction.Output>(uPool.H[i]));
+    readOnly = false;
+  }
+
+  // read-only view sharing the coins of uPool
+  private UTXOPool(UTXOPool uPool, boolean readOnly) {
+    H = uPool.H;
+    cap = uPool.cap;
+    this.readOnly = readOnly;
+  }
+
+  /**
+   * @return a view of this pool's coins, following its changes, that throws
+   *         UnsupportedOperationException when modified. Copies of the view
+   *         are modifiable.
+   */
+  public UTXOPool readOnlyView() {
+    return readOnly ? this : new UTXOPool(this, true);
+  }
+
+  private void checkWritable() {
+    if (readOnly) throw new UnsupportedOperationException("read-only UTXOPool");
+  }
+
+  /** @return shard holding output {@code index} of transaction {@code txHash} */
+  static int shard(byte[] txHash, int index) {
+    int prefix = txHash.length == 0 ? 0 : txHash[0];
+    return (prefix + index) & (SHARDS - 1);
+  }
+
+  private HashMap<UTXO, Transaction.Output> shardOf(UTXO ut) {
+    return H[shard(ut.getTxHash(), ut.getIndex())];
   }
 
   /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut}
    * to the pool */
   public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-    H.put(utxo, txOut);
+    checkWritable();
+    shardOf(utxo).put(utxo, txOut);
   }
 
   /** Removes the UTXO {@code utxo} from the pool */
   public void removeUTXO(UTXO utxo) {
-    H.remove(utxo);
+    checkWritable();
+    shardOf(utxo).remove(utxo);
+  }
+
+  /** Removes the output {@code index} of transaction {@code txHash} */
+  public void removeUTXO(byte[] txHash, int index) {
+    checkWritable();
+    UTXO key = probe.get().set(txHash, index);
+    H[shard(txHash, index)].remove(key);
+    key.set(null, 0);
+  }
+
+  /**
+   * Applies a block's changes in one pass: adds the created coins, then
+   * removes the spent ones, so coins created and spent by the block are
+   * gone. Each shard is grown once to its final size, and shards are updated
+   * concurrently on {@code workers} when there are many changes.
+   * @return record of the changes for {@link #undo}
+   */
+  public UTXODelta.Undo applyDelta(UTXODelta d, ForkJoinPool workers) {
+    checkWritable();
+    int[][] adds = bucket(d.createdHash, d.createdIndex, d.nCreated),
+      removes = bucket(d.spentHash, d.spentIndex, d.nSpent);
+    UTXODelta.Undo undo = new UTXODelta.Undo(SHARDS);
+    IntStream is = IntStream.range(0, SHARDS);
+    if (d.nCreated + d.nSpent < PARALLEL_THRESHOLD)
+      is.forEach(sh -> applyShard(sh, d, adds[sh], removes[sh], undo));
+    else
+      workers.submit(() -> is.parallel().forEach(
+            sh -> applyShard(sh, d, adds[sh], removes[sh], undo))).join();
+    return undo;
+  }
+
+  public UTXODelta.Undo applyDelta(UTXODelta d) {
+    return applyDelta(d, ForkJoinPool.commonPool());
+  }
+
+  /** Reverts a delta applied by {@link #applyDelta} */
+  public void undo(UTXODelta.Undo undo) {
+    checkWritable();
+    for (int sh = 0; sh < SHARDS; sh++) {
+      HashMap<UTXO, Transaction.Output> m = H[sh];
+      UTXO[] removed = undo.removed[sh];
+      for (int i = 0; i < removed.length; i++)
+        m.put(removed[i], undo.removedOutput[sh][i]);
+      UTXO[] added = undo.added[sh];
+      for (int i = 0; i < added.length; i++) {
+        Transaction.Output old = undo.replacedOutput[sh][i];
+        if (old == null) m.remove(added[i]);
+        else m.put(added[i], old);
+      }
+    }
+  }
+
+  private void applyShard(int sh, UTXODelta d, int[] adds, int[] removes,
+                          UTXODelta.Undo undo) {
+    reserve(sh, H[sh].size() + adds.length);
+    HashMap<UTXO, Transaction.Output> m = H[sh];
+    UTXO[] added = new UTXO[adds.length];
+    Transaction.Output[] replaced = new Transaction.Output[adds.length];
+    for (int k = 0; k < adds.length; k++) {
+      int i = adds[k];
+      added[k] = new UTXO(d.createdHash[i], d.createdIndex[i]);
+      replaced[k] = m.put(added[k], d.createdOutput[i]);
+    }
+
+    UTXO key = probe.get();
+    UTXO[] removed = new UTXO[removes.length];
+    Transaction.Output[] outs = new Transaction.Output[removes.length];
+    int n = 0;
+    for (int i : removes) {
+      key.set(d.spentHash[i], d.spentIndex[i]);
+      Transaction.Output op = m.remove(key);
+      if (op == null) continue;
+      removed[n] = new UTXO(d.spentHash[i], d.spentIndex[i]);
+      outs[n++] = op;
+    }
+    key.set(null, 0);
+    undo.added[sh] = added;
+    undo.replacedOutput[sh] = replaced;
+    undo.removed[sh] = Arrays.copyOf(removed, n);
+    undo.removedOutput[sh] = Arrays.copyOf(outs, n);
+  }
+
+  // grow shard sh to hold n entries with one rehash, instead of doubling as
+  // entries are added
+  private void reserve(int sh, int n) {
+    cap[sh] = Math.max(cap[sh], capacityFor(H[sh].size()));
+    if (n <= cap[sh] / 4 * 3) return;
+    cap[sh] = capacityFor(n);
+    HashMap<UTXO, Transaction.Output> m = new HashMap<>(cap[sh]);
+    m.putAll(H[sh]);
+    H[sh] = m;
+  }
+
+  // table size of a HashMap holding n entries
+  private static int capacityFor(int n) {
+    int c = 16;
+    while (c / 4 * 3 < n) c <<= 1;
+    return c;
+  }
+
+  // positions of the n outpoints in each shard
+  private static int[][] bucket(byte[][] hashes, int[] indices, int n) {
+    int[] shardOf = new int[n], count = new int[SHARDS];
+    for (int i = 0; i < n; i++)
+      count[shardOf[i] = shard(hashes[i], indices[i])]++;
+    int[][] res = new int[SHARDS][];
+    for (int sh = 0; sh < SHARDS; sh++) res[sh] = new int[count[sh]];
+    int[] fill = new int[SHARDS];
+    for (int i = 0; i < n; i++)
+      res[shardOf[i]][fill[shardOf[i]]++] = i;
+    return res;
   }
 
   /**
@@ -36,21 +202,47 @@ public class UTXOPool {
    *         if {@code utxo} is not in the pool.
    */
   public Transaction.Output getTxOutput(UTXO ut) {
-    return H.get(ut);
+    return shardOf(ut).get(ut);
+  }
+
+  /**
+   * @return the transaction output {@code index} of transaction
+   *         {@code txHash}, or null if it is not in the pool. Does not
+   *         allocate.
+   */
+  public Transaction.Output getTxOutput(byte[] txHash, int index) {
+    UTXO key = probe.get().set(txHash, index);
+    Transaction.Output op = H[shard(txHash, index)].get(key);
+    key.set(null, 0);
+    return op;
+  }
+
+  /**
+   * @return the amount in base units of the output corresponding to
+   *         {@code ut}, or -1 if {@code ut} is not in the pool
+   */
+  public long getAmount(UTXO ut) {
+    Transaction.Output op = getTxOutput(ut);
+    return op == null ? -1 : op.getAmount();
   }
 
   /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
   public boolean contains(UTXO utxo) {
-    return H.containsKey(utxo);
+    return shardOf(utxo).containsKey(utxo);
+  }
+
+  /** @return number of UTXOs in the pool */
+  public int size() {
+    int n = 0;
+    for (HashMap<UTXO, Transaction.Output> m : H) n += m.size();
+    return n;
   }
 
   /** Returns an {@code ArrayList} of all UTXOs in the pool */
   public ArrayList<UTXO> getAllUTXO() {
-    Set<UTXO> setUTXO = H.keySet();
-    ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-    for (UTXO ut : setUTXO) {
-      allUTXO.add(ut);
-    }
+    ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+    for (HashMap<UTXO, Transaction.Output> m : H)
+      allUTXO.addAll(m.keySet());
     return allUTXO;
   }
 }
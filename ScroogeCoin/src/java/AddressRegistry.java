@@ -0,0 +1,101 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns recipient public keys to compact integer ids. Outputs paying the
+ * same address share one key object, and the key's serialized bytes and hash
+ * are computed once instead of on every serialization.
+ *
+ * <p> The registry holds addresses weakly: an address no output refers to
+ * any more is dropped, and interning its key again gives a new id. Ids are
+ * never reused, so two live outputs pay the same address exactly when their
+ * ids are equal.
+ */
+public class AddressRegistry {
+
+  /** an interned address */
+  public static final class Address {
+    public final int id;
+    public final PublicKey key;
+    private final byte[] encoded;     // key.getEncoded()
+    private final byte[] keyHash;     // SHA-256 of encoded
+
+    private Address(int id, PublicKey key) {
+      this.id = id;
+      this.key = key;
+      encoded = encode(key);
+      keyHash = sha256(encoded);
+    }
+
+    /** @return the serialized key, shared: callers must not modify it */
+    public byte[] getEncoded() {
+      return encoded;
+    }
+
+    /** @return SHA-256 of the serialized key, shared: do not modify */
+    public byte[] getKeyHash() {
+      return keyHash;
+    }
+  }
+
+  // entry for a key, cleared once its address is unreachable
+  private static final class Ref extends WeakReference<Address> {
+    final PublicKey key;
+    Ref(Address a, ReferenceQueue<Address> q) {
+      super(a, q);
+      key = a.key;
+    }
+  }
+
+  private static final ConcurrentHashMap<PublicKey, Ref> byKey =
+    new ConcurrentHashMap<>();
+  private static final ReferenceQueue<Address> cleared = new ReferenceQueue<>();
+  private static int next;                          // guarded by the class
+
+  /** @return the interned address of {@code key}, registering it if new */
+  public static Address intern(PublicKey key) {
+    Ref r = byKey.get(key);
+    Address a = r == null ? null : r.get();
+    if (a != null) return a;
+    synchronized (AddressRegistry.class) {
+      expunge();
+      r = byKey.get(key);
+      a = r == null ? null : r.get();
+      if (a != null) return a;
+      a = new Address(next++, key);
+      byKey.put(key, new Ref(a, cleared));
+      return a;
+    }
+  }
+
+  /** @return number of interned addresses still in use */
+  public static synchronized int size() {
+    expunge();
+    return byKey.size();
+  }
+
+  // drop entries whose address was collected, unless already replaced
+  private static void expunge() {
+    for (Object o; (o = cleared.poll()) != null; ) {
+      Ref r = (Ref) o;
+      byKey.remove(r.key, r);
+    }
+  }
+
+  private static byte[] encode(PublicKey key) {
+    return key.getEncoded();
+  }
+
+  private static byte[] sha256(byte[] b) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(b);
+    } catch (NoSuchAlgorithmException x) {
+      x.printStackTrace(System.err);
+      return null;
+    }
+  }
+}
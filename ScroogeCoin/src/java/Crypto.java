@@ -33,4 +33,33 @@ public class Crypto {
     }
     return false;
   }
+
+  // verifiers are reused per thread instead of looked up on every call
+  private static final ThreadLocal<Signature> verifier =
+    ThreadLocal.withInitial(() -> {
+        try {
+          return Signature.getInstance("SHA256withRSA");
+        } catch (NoSuchAlgorithmException e) {
+          e.printStackTrace();
+          return null;
+        }
+      });
+
+  /**
+   * Same as {@link #verifySignature(PublicKey, byte[], byte[])} over the
+   * first {@code len} bytes of {@code message}, reusing a per-thread
+   * {@code Signature}.
+   */
+  public static boolean verifySignature(PublicKey pubKey, byte[] message,
+                                        int len, byte[] signature) {
+    Signature sig = verifier.get();
+    try {
+      sig.initVerify(pubKey);
+      sig.update(message, 0, len);
+      return sig.verify(signature);
+    } catch (InvalidKeyException | SignatureException e) {
+      e.printStackTrace();
+    }
+    return false;
+  }
 }
@@ -0,0 +1,473 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the transactions accepted in each epoch, from which
+ * the UTXO pool is rebuilt after a restart.
+ *
+ * <p> Appends are group committed: a writer thread collects the epochs
+ * appended within {@code maxDelay} of the first one waiting, writes them
+ * together and syncs the file once, so the sync is paid per group rather
+ * than per epoch. Each append returns a future completed once its epoch is
+ * durable.
+ *
+ * <p> Each epoch is one record: its length, a CRC32 and the transactions.
+ * A recipient key is written once, the first time it is used, and is then
+ * referred to by position. A crash can leave anything after the last synced
+ * group, torn, zeroed or stale, so the log ends at the first bad record and
+ * opening it for appending cuts that tail off, unless an intact record of a
+ * later epoch follows: then the damage is in the middle, and opening and
+ * replaying fail rather than drop the epochs after it.
+ */
+public class LedgerLog implements AutoCloseable {
+  private static final int MAGIC = 0x534c4f47;    // "SLOG"
+  private static final int VERSION = 2;
+  private static final int HEADER = 8;
+  private static final int FRAME = 8;             // length and CRC32
+  private static final int MIN_PAYLOAD = 12;      // epoch and count
+  private static final int MAX_RECORD = 1 << 28;
+  /** bytes written before syncing, however soon */
+  public static final int MAX_GROUP_BYTES = 1 << 22;
+  private static final int NEW_KEY = -1;
+  private static final int BUFFER = 1 << 16;
+
+  // an epoch waiting to be written
+  private static class Pending {
+    final byte[] record;
+    final long time;
+    final CompletableFuture<Void> durable = new CompletableFuture<>();
+    Pending(byte[] record, long time) {
+      this.record = record;
+      this.time = time;
+    }
+  }
+
+  private static final Pending CLOSE = new Pending(new byte[0], 0);
+
+  private final FileChannel channel;
+  private final long maxDelayNanos;
+  private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+
+  // guarded by this
+  private final HashMap<PublicKey, Integer> keyIndex = new HashMap<>();  // -> position
+  private long epochs;
+  private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+  private boolean closed;
+  private int reserved;                 // reservations not yet used or cancelled
+  private boolean closeQueued;
+
+  private volatile IOException failure;
+  private volatile long syncs;
+
+  /**
+   * Opens the log at {@code file} for appending, creating it if missing.
+   * @param maxDelayMicros longest an epoch waits for others to share its sync
+   */
+  public LedgerLog(Path file, long maxDelayMicros) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+    maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    try {
+      if (channel.size() == 0) {
+        ByteBuffer h = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION);
+        h.flip();
+        while (h.hasRemaining()) channel.write(h);
+        channel.force(true);
+      }
+      ArrayList<PublicKey> keys = new ArrayList<>();
+      long end = scan(channel, keys, txs -> epochs++);
+      for (int i = 0; i < keys.size(); i++)
+        keyIndex.put(keys.get(i), i);
+      channel.truncate(end);                      // drop a torn tail
+      channel.position(end);
+    } catch (IOException x) {
+      channel.close();
+      throw x;
+    }
+    writer = new Thread(this::write, "ledger-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Appends the transactions accepted in an epoch, which must be finalized.
+   * @return completes once the epoch is durable, or exceptionally if the log
+   *         couldn't be written
+   */
+  public synchronized CompletableFuture<Void> append(Transaction[] accepted) {
+    if (closed) throw new IllegalStateException("ledger log closed");
+    return enqueue(accepted);
+  }
+
+  /**
+   * Reserves the next append, so a caller can change its state knowing the
+   * epoch will be taken: {@link #close} waits for the reservation to be
+   * used or cancelled.
+   * @throws IllegalStateException if the log is closed or a write failed
+   */
+  public synchronized Reservation reserve() {
+    if (closed) throw new IllegalStateException("ledger log closed");
+    if (failure != null) throw new IllegalStateException("ledger log failed", failure);
+    reserved++;
+    return new Reservation();
+  }
+
+  /** an append reserved by {@link #reserve} */
+  public class Reservation {
+    private boolean done;                         // guarded by the log
+
+    private Reservation() {}
+
+    /** Like {@link LedgerLog#append}, taken even if the log is closing */
+    public CompletableFuture<Void> append(Transaction[] accepted) {
+      synchronized (LedgerLog.this) {
+        if (done) throw new IllegalStateException("reservation already used");
+        release();
+        return enqueue(accepted);
+      }
+    }
+
+    /** Gives the append back unused; does nothing once used */
+    public void cancel() {
+      synchronized (LedgerLog.this) {
+        if (!done) release();
+      }
+    }
+
+    private void release() {
+      done = true;
+      reserved--;
+      LedgerLog.this.notifyAll();
+    }
+  }
+
+  // guarded by this
+  private CompletableFuture<Void> enqueue(Transaction[] accepted) {
+    if (failure != null) return CompletableFuture.failedFuture(failure);
+    if (closeQueued)                              // close gave up waiting
+      return CompletableFuture.failedFuture(new IOException("ledger log closed"));
+    Pending p = new Pending(record(epochs++, accepted), System.nanoTime());
+    queue.add(p);
+    last = p.durable;
+    return p.durable;
+  }
+
+  /** @return completes once every epoch appended so far is durable */
+  public synchronized CompletableFuture<Void> flushed() {
+    return last;
+  }
+
+  /** @return number of epochs in the log, including those not yet durable */
+  public synchronized long epochCount() {
+    return epochs;
+  }
+
+  /** @return number of times the file was synced */
+  public long syncCount() {
+    return syncs;
+  }
+
+  /**
+   * Waits for outstanding reservations, writes the epochs appended so far,
+   * then closes the file
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      try {
+        while (reserved > 0) wait();
+      } catch (InterruptedException x) {
+        Thread.currentThread().interrupt();
+      }
+      closeQueued = true;
+      queue.add(CLOSE);
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    if (failure != null) throw failure;
+  }
+
+  /**
+   * Rebuilds the pool left by the epochs logged in {@code file}, applied to
+   * {@code start}, the pool before the first epoch.
+   * @throws IOException if a bad record is followed by an intact one
+   */
+  public static UTXOPool replay(Path file, UTXOPool start) throws IOException {
+    UTXOPool pool = new UTXOPool(start);
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      scan(ch, new ArrayList<>(), txs -> {
+          for (Transaction t : txs) {
+            for (Transaction.Input i : t.getInputs())
+              pool.removeUTXO(i.prevTxHash, i.outputIndex);
+            byte[] h = t.getHash();
+            for (int j = 0; j < t.numOutputs(); j++)
+              pool.addUTXO(new UTXO(h, j), t.getOutput(j));
+          }
+        });
+    }
+    return pool;
+  }
+
+  // group commit: wait for the first epoch, gather those arriving within
+  // the delay, write them in one go and sync once
+  private void write() {
+    ArrayList<Pending> group = new ArrayList<>();
+    boolean closing = false;
+    while (!closing) {
+      try {
+        Pending first = queue.take();
+        if (first == CLOSE) break;
+        group.add(first);
+        long bytes = first.record.length;
+        long deadline = first.time + maxDelayNanos;
+        while (bytes < MAX_GROUP_BYTES) {
+          Pending p = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (p == null) break;
+          if (p == CLOSE) {
+            closing = true;
+            break;
+          }
+          group.add(p);
+          bytes += p.record.length;
+        }
+        // anything already queued rides along for free
+        for (Pending p; !closing && bytes < MAX_GROUP_BYTES
+               && (p = queue.poll()) != null; ) {
+          if (p == CLOSE) closing = true;
+          else {
+            group.add(p);
+            bytes += p.record.length;
+          }
+        }
+      } catch (InterruptedException x) {
+        closing = true;
+      }
+      if (group.isEmpty()) continue;
+      try {
+        if (failure != null) throw failure;
+        ByteBuffer[] bufs = new ByteBuffer[group.size()];
+        for (int i = 0; i < bufs.length; i++) bufs[i] = ByteBuffer.wrap(group.get(i).record);
+        for (int i = 0; i < bufs.length; ) {
+          channel.write(bufs, i, bufs.length - i);
+          while (i < bufs.length && !bufs[i].hasRemaining()) i++;
+        }
+        channel.force(false);
+        syncs++;
+        for (Pending p : group) p.durable.complete(null);
+      } catch (IOException x) {
+        failure = x;
+        for (Pending p : group) p.durable.completeExceptionally(x);
+      }
+      group.clear();
+    }
+  }
+
+  // framed record for an epoch; assigns positions to keys not yet logged
+  private byte[] record(long epoch, Transaction[] txs) {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(BUFFER);
+    try (DataOutputStream out = new DataOutputStream(buf)) {
+      out.writeLong(0);                           // frame, filled below
+      out.writeLong(epoch);
+      out.writeInt(txs.length);
+      for (Transaction t : txs) {
+        writeBytes(out, t.getHash());
+        out.writeInt(t.numInputs());
+        for (Transaction.Input in : t.getInputs()) {
+          writeBytes(out, in.prevTxHash);
+          out.writeInt(in.outputIndex);
+          writeBytes(out, in.signature);
+        }
+        out.writeInt(t.numOutputs());
+        for (Transaction.Output op : t.getOutputs()) {
+          out.writeLong(op.getAmount());
+          Integer k = keyIndex.get(op.getAddress());
+          if (k != null) {
+            out.writeInt(k);
+          } else {
+            keyIndex.put(op.getAddress(), keyIndex.size());
+            out.writeInt(NEW_KEY);
+            writeBytes(out, op.getAddressBytes());
+          }
+        }
+      }
+    } catch (IOException x) {
+      throw new IllegalStateException(x);         // in memory, can't happen
+    }
+    byte[] rec = buf.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(rec, FRAME, rec.length - FRAME);
+    ByteBuffer.wrap(rec).putInt(rec.length - FRAME).putInt((int) crc.getValue());
+    return rec;
+  }
+
+  /**
+   * Reads records from {@code ch} after the header, passing each epoch's
+   * transactions to {@code epoch} and collecting keys into {@code keys}.
+   * @return offset just past the last whole, intact record
+   * @throws IOException if a bad record is followed by an intact one
+   */
+  private static long scan(FileChannel ch, ArrayList<PublicKey> keys,
+                           Consumer<Transaction[]> epoch) throws IOException {
+    long size = ch.size();
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(Channels.newInputStream(ch.position(0)), BUFFER));
+    if (in.readInt() != MAGIC || in.readInt() != VERSION)
+      throw new IOException("not a ledger log");
+    long end = HEADER, count = 0;
+    KeyFactory kf;
+    try {
+      kf = KeyFactory.getInstance("RSA");
+    } catch (GeneralSecurityException x) {
+      throw new IOException(x);
+    }
+    CRC32 crc = new CRC32();
+    while (end < size) {
+      Transaction[] txs = null;
+      int len = -1;
+      try {
+        len = in.readInt();
+        int sum = in.readInt();
+        if (len >= 0 && len <= MAX_RECORD && end + FRAME + len <= size) {
+          byte[] payload = new byte[len];
+          in.readFully(payload);
+          crc.reset();
+          crc.update(payload);
+          int known = keys.size();
+          if ((int) crc.getValue() == sum) {
+            try {
+              txs = parse(new DataInputStream(new ByteArrayInputStream(payload)), keys, kf);
+            } catch (IOException | GeneralSecurityException x) {
+              keys.subList(known, keys.size()).clear();
+            }
+          }
+        }
+      } catch (EOFException x) {
+        // torn frame, handled below
+      }
+      if (txs == null) {
+        if (intactAfter(ch, end + 1, size, count))
+          throw new IOException("corrupt ledger log record at offset " + end);
+        break;                                    // unsynced tail
+      }
+      epoch.accept(txs);
+      end += FRAME + len;
+      count++;
+    }
+    return end;
+  }
+
+  /**
+   * @return true if an intact record of epoch {@code epoch} or later starts
+   *         at or after {@code from}. Only frame and CRC are checked, as the
+   *         record may use keys declared in the damaged ones.
+   */
+  private static boolean intactAfter(FileChannel ch, long from, long size, long epoch)
+    throws IOException {
+    ByteBuffer win = ByteBuffer.allocate(BUFFER);
+    long base = from;
+    win.limit(0);
+    CRC32 crc = new CRC32();
+    for (long p = from; p + FRAME + MIN_PAYLOAD <= size; p++) {
+      if (p + FRAME > base + win.limit()) {
+        base = p;
+        readAt(ch, win, base, size);
+      }
+      int off = (int) (p - base);
+      int len = win.getInt(off), sum = win.getInt(off + 4);
+      if (len < MIN_PAYLOAD || len > MAX_RECORD || p + FRAME + len > size) continue;
+      ByteBuffer payload = ByteBuffer.allocate(len);
+      readAt(ch, payload, p + FRAME, size);
+      crc.reset();
+      crc.update(payload.array());
+      if ((int) crc.getValue() == sum && payload.getLong(0) >= epoch) return true;
+    }
+    return false;
+  }
+
+  // fill buf from offset pos of ch, up to its capacity or the end of the file
+  private static void readAt(FileChannel ch, ByteBuffer buf, long pos, long size)
+    throws IOException {
+    buf.clear();
+    if (size - pos < buf.capacity()) buf.limit((int) (size - pos));
+    while (buf.hasRemaining())
+      if (ch.read(buf, pos + buf.position()) < 0) break;
+    buf.flip();
+  }
+
+  private static Transaction[] parse(DataInputStream in, ArrayList<PublicKey> keys,
+                                     KeyFactory kf)
+    throws IOException, GeneralSecurityException {
+    in.readLong();                                // epoch number
+    Transaction[] txs = new Transaction[in.readInt()];
+    for (int t = 0; t < txs.length; t++) {
+      Transaction tx = new Transaction();
+      byte[] hash = readBytes(in);
+      int nIn = in.readInt();
+      byte[][] sigs = new byte[nIn][];
+      for (int i = 0; i < nIn; i++) {
+        byte[] prev = readBytes(in);
+        tx.addInput(prev, in.readInt());
+        sigs[i] = readBytes(in);
+      }
+      int nOut = in.readInt();
+      for (int i = 0; i < nOut; i++) {
+        long amount = in.readLong();
+        int k = in.readInt();
+        if (k == NEW_KEY) {
+          keys.add(kf.generatePublic(new X509EncodedKeySpec(readBytes(in))));
+          k = keys.size() - 1;
+        }
+        if (k < 0 || k >= keys.size()) throw new IOException("bad key index");
+        tx.addOutputUnits(amount, keys.get(k));
+      }
+      for (int i = 0; i < nIn; i++)
+        if (sigs[i] != null) tx.addSignature(sigs[i], i);
+      tx.setHash(hash);
+      txs[t] = tx;
+    }
+    return txs;
+  }
+
+  // length-prefixed bytes, -1 for null
+  private static void writeBytes(DataOutputStream out, byte[] b)
+    throws IOException {
+    out.writeInt(b == null ? -1 : b.length);
+    if (b != null) out.write(b);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < -1 || n > MAX_RECORD) throw new IOException("bad length");
+    if (n == -1) return null;
+    byte[] b = new byte[n];
+    in.readFully(b);
+    return b;
+  }
+}
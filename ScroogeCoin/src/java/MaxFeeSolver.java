@@ -0,0 +1,413 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Branch and bound search for the subset of transactions paying the most
+ * fees in which no coin is claimed twice and every transaction's
+ * prerequisites are included. Transactions are indexed in topological
+ * order, so prerequisites come first.
+ *
+ * <p> Each transaction keeps the earlier transactions it conflicts with and
+ * its prerequisites as short lists, checked against the bitset of the
+ * subset being built. The include/exclude tree is walked with an explicit
+ * stack, so any number of transactions can be searched. A branch is pruned
+ * when its fees plus all remaining fees can't beat the best subset found. The search stops at a deadline with the best subset so
+ * far, reporting whether it was proven optimal.
+ *
+ * <p> In parallel mode the include/exclude tree is split into fork/join
+ * tasks down to a cutoff depth, below which each task searches serially.
+ * The best fee is shared atomically so every task prunes against it.
+ *
+ * <p> {@link #solveByComponents} first splits the transactions into
+ * clusters linked by shared coins or dependencies and searches each one
+ * alone, so the cost is the sum of the clusters' costs, not their product.
+ */
+public class MaxFeeSolver {
+  // nodes between deadline checks
+  private static final int CHECK_EVERY = 1 << 10;
+  /** tree levels split into tasks beyond log2 of the parallelism */
+  public static final int EXTRA_SPLIT_DEPTH = 6;
+
+  /** outcome of a search */
+  public static class Result {
+    /** chosen transactions, ascending */
+    public final int[] chosen;
+    public final long fee;
+    /** true if the whole tree was searched */
+    public final boolean optimal;
+    /** search nodes visited */
+    public final long nodes;
+
+    Result(int[] chosen, long fee, boolean optimal, long nodes) {
+      this.chosen = chosen;
+      this.fee = fee;
+      this.optimal = optimal;
+      this.nodes = nodes;
+    }
+  }
+
+  private final int n, words;
+  private final long[] fees;
+  private final long[] suffix;            // fees of transactions i..n-1
+  private final int[][] conflicts;        // earlier transactions sharing a coin
+  private final int[][] needs;            // prerequisites
+
+  // search state, shared by the tasks of a parallel search
+  private final AtomicLong best = new AtomicLong();
+  private long[] bestSet;                 // guarded by this
+  private long deadline;
+  private boolean limited;                // there is a deadline
+  private volatile boolean timedOut;
+  private final LongAdder nodes = new LongAdder();
+  private int splitDepth;                 // tree levels forked as tasks
+
+  /**
+   * @param fees     fee of each transaction, non-negative
+   * @param coins    coins claimed by each transaction
+   * @param depends  prerequisites of each transaction, all earlier
+   */
+  public MaxFeeSolver(long[] fees, List<? extends Collection<UTXO>> coins,
+                      List<? extends Collection<Integer>> depends) {
+    n = coins.size();
+    words = (n + 63) >>> 6;
+    this.fees = fees;
+    suffix = new long[n + 1];
+    for (int i = n - 1; i >= 0; i--) suffix[i] = suffix[i + 1] + fees[i];
+
+    // subsets are built in index order, so only earlier conflicts matter
+    conflicts = new int[n][];
+    HashMap<UTXO, ArrayList<Integer>> claimers = new HashMap<>();
+    for (int i = 0; i < n; i++) {
+      HashSet<Integer> earlier = new HashSet<>();
+      for (UTXO c : coins.get(i)) {
+        ArrayList<Integer> cs = claimers.computeIfAbsent(c, k -> new ArrayList<>());
+        earlier.addAll(cs);
+        cs.add(i);
+      }
+      conflicts[i] = toArray(earlier);
+    }
+
+    needs = new int[n][];
+    for (int i = 0; i < n; i++) needs[i] = toArray(depends.get(i));
+  }
+
+  private static int[] toArray(Collection<Integer> c) {
+    int[] res = new int[c.size()];
+    int k = 0;
+    for (int j : c) res[k++] = j;
+    return res;
+  }
+
+  /**
+   * Searches each connected component of the conflict/dependency graph
+   * separately, on {@code workers} if not null. A component with no shared
+   * coin is taken whole, which is optimal as fees are non-negative.
+   * Arguments are as for the constructor.
+   * @return the union of the components' subsets, optimal if each one is
+   */
+  public static Result solveByComponents(long[] fees,
+                                         List<? extends Collection<UTXO>> coins,
+                                         List<? extends Collection<Integer>> depends,
+                                         long budgetNanos, ForkJoinPool workers) {
+    int n = coins.size();
+    int[] parent = new int[n];
+    for (int i = 0; i < n; i++) parent[i] = i;
+    HashMap<UTXO, Integer> claimer = new HashMap<>();
+    boolean[] shared = new boolean[n];     // some coin is claimed twice
+    for (int i = 0; i < n; i++) {
+      for (UTXO c : coins.get(i)) {
+        Integer j = claimer.putIfAbsent(c, i);
+        if (j != null) {
+          union(parent, i, j);
+          shared[i] = true;
+        }
+      }
+      for (int j : depends.get(i)) union(parent, i, j);
+    }
+
+    // components in index order, so each stays topologically sorted
+    HashMap<Integer, ArrayList<Integer>> byRoot = new HashMap<>();
+    boolean[] search = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      int r = find(parent, i);
+      byRoot.computeIfAbsent(r, k -> new ArrayList<>()).add(i);
+      if (shared[i]) search[r] = true;
+    }
+
+    long deadline = System.nanoTime() + budgetNanos;
+    boolean limited = budgetNanos != Long.MAX_VALUE;
+    ArrayList<Component> parts = new ArrayList<>();
+    long[] taken = new long[(n + 63) >>> 6];
+    long fee = 0;
+    for (ArrayList<Integer> members : byRoot.values()) {
+      if (search[find(parent, members.get(0))]) {
+        parts.add(new Component(members, fees, coins, depends, deadline,
+                                limited, workers));
+      } else {
+        for (int i : members) {
+          set(taken, i);
+          fee += fees[i];
+        }
+      }
+    }
+    if (workers == null)
+      for (Component c : parts) c.compute();
+    else if (!parts.isEmpty())
+      workers.invoke(new RecursiveTask<Void>() {
+          private static final long serialVersionUID = 1L;
+
+          protected Void compute() {
+            invokeAll(parts);
+            return null;
+          }
+        });
+
+    boolean optimal = true;
+    long nodes = 0;
+    for (Component c : parts) {
+      Result r = c.result;
+      for (int k : r.chosen) set(taken, c.members.get(k));
+      fee += r.fee;
+      optimal &= r.optimal;
+      nodes += r.nodes;
+    }
+    return new Result(members(taken), fee, optimal, nodes);
+  }
+
+  // a cluster of transactions searched on its own, indexed locally
+  private static class Component extends RecursiveTask<Result> {
+    private static final long serialVersionUID = 1L;
+    final ArrayList<Integer> members;
+    final MaxFeeSolver solver;
+    final long deadline;
+    final boolean limited;
+    final ForkJoinPool workers;
+    Result result;
+
+    Component(ArrayList<Integer> members, long[] fees,
+              List<? extends Collection<UTXO>> coins,
+              List<? extends Collection<Integer>> depends,
+              long deadline, boolean limited, ForkJoinPool workers) {
+      this.members = members;
+      this.deadline = deadline;
+      this.limited = limited;
+      this.workers = workers;
+      HashMap<Integer, Integer> local = new HashMap<>();
+      long[] f = new long[members.size()];
+      ArrayList<Collection<UTXO>> cs = new ArrayList<>();
+      ArrayList<ArrayList<Integer>> ds = new ArrayList<>();
+      for (int i : members) {
+        local.put(i, cs.size());
+        f[cs.size()] = fees[i];
+        cs.add(coins.get(i));
+        ArrayList<Integer> d = new ArrayList<>();
+        for (int j : depends.get(i)) d.add(local.get(j));
+        ds.add(d);
+      }
+      solver = new MaxFeeSolver(f, cs, ds);
+    }
+
+    protected Result compute() {
+      long left = limited ? Math.max(0, deadline - System.nanoTime())
+                          : Long.MAX_VALUE;
+      result = workers == null ? solver.solve(left) : solver.solve(left, workers);
+      return result;
+    }
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) i = parent[i] = parent[parent[i]];
+    return i;
+  }
+
+  private static void union(int[] parent, int a, int b) {
+    a = find(parent, a);
+    b = find(parent, b);
+    if (a != b) parent[Math.max(a, b)] = Math.min(a, b);
+  }
+
+  /** @return the best subset found within {@code budgetNanos} */
+  public Result solve(long budgetNanos) {
+    start(budgetNanos, 0);
+    new Searcher(new long[words]).search(0, 0);
+    return result();
+  }
+
+  /**
+   * Like {@link #solve(long)}, searching on {@code workers}. Finds a subset
+   * with the same total fee as the serial search, given the time.
+   */
+  public Result solve(long budgetNanos, ForkJoinPool workers) {
+    int p = Math.max(1, workers.getParallelism());
+    start(budgetNanos, 32 - Integer.numberOfLeadingZeros(p) + EXTRA_SPLIT_DEPTH);
+    workers.invoke(new Split(new long[words], 0, 0));
+    return result();
+  }
+
+  private void start(long budgetNanos, int splitDepth) {
+    limited = budgetNanos != Long.MAX_VALUE;
+    deadline = System.nanoTime() + budgetNanos;
+    timedOut = false;
+    nodes.reset();
+    this.splitDepth = splitDepth;
+    greedy();
+  }
+
+  private synchronized Result result() {
+    return new Result(members(bestSet), best.get(), !timedOut, nodes.sum());
+  }
+
+  // first incumbent: take each transaction that fits, in order
+  private void greedy() {
+    long[] s = new long[words];
+    long fee = 0;
+    for (int i = 0; i < n; i++)
+      if (fits(i, s)) {
+        set(s, i);
+        fee += fees[i];
+      }
+    synchronized (this) {
+      best.set(fee);
+      bestSet = s;
+    }
+  }
+
+  // record s if it beats the best subset
+  private synchronized void offer(long fee, long[] s) {
+    if (fee <= best.get()) return;
+    best.set(fee);
+    bestSet = s.clone();
+  }
+
+  // branch taken at a node of the search stack
+  private static final byte ENTER = 0, INCLUDED = 1, EXCLUDED = 2;
+
+  // serial search below a node, with its own subset
+  private class Searcher {
+    final long[] cur;
+    long visited;
+
+    Searcher(long[] cur) {
+      this.cur = cur;
+    }
+
+    // walks the tree below transaction i0; the stack entry at depth d is
+    // transaction i0 + d, with the fee on reaching it and the branch taken
+    void search(int i0, long fee0) {
+      long[] fee = new long[n - i0 + 1];
+      byte[] branch = new byte[n - i0 + 1];
+      int top = 0;
+      fee[0] = fee0;
+      branch[0] = ENTER;
+      while (top >= 0) {
+        int i = i0 + top;
+        if (branch[top] == ENTER) {
+          if (timedOut || ++visited % CHECK_EVERY == 0 && limited
+              && System.nanoTime() - deadline > 0) {
+            timedOut = true;
+            // unwind, leaving cur as it was given
+            for (; top >= 0; top--)
+              if (branch[top] == INCLUDED) clear(cur, i0 + top);
+            break;
+          }
+          if (fee[top] + suffix[i] <= best.get()) {  // can't improve on best
+            top--;
+          } else if (i == n) {
+            offer(fee[top], cur);
+            top--;
+          } else if (fits(i, cur)) {
+            set(cur, i);
+            branch[top] = INCLUDED;
+            fee[top + 1] = fee[top] + fees[i];
+            branch[++top] = ENTER;
+          } else {
+            branch[top] = EXCLUDED;
+            fee[top + 1] = fee[top];
+            branch[++top] = ENTER;
+          }
+        } else if (branch[top] == INCLUDED) {
+          clear(cur, i);
+          branch[top] = EXCLUDED;
+          fee[top + 1] = fee[top];
+          branch[++top] = ENTER;
+        } else {
+          top--;
+        }
+      }
+      nodes.add(visited);
+    }
+  }
+
+  // node of the top of the tree, forking its include branch
+  private class Split extends RecursiveTask<Void> {
+    private static final long serialVersionUID = 1L;
+    final long[] cur;
+    final int i;
+    final long fee;
+
+    Split(long[] cur, int i, long fee) {
+      this.cur = cur;
+      this.i = i;
+      this.fee = fee;
+    }
+
+    protected Void compute() {
+      if (i >= splitDepth || i == n) {
+        new Searcher(cur).search(i, fee);
+        return null;
+      }
+      nodes.increment();
+      if (timedOut || fee + suffix[i] <= best.get()) return null;
+      Split include = null;
+      if (fits(i, cur)) {
+        long[] with = cur.clone();
+        set(with, i);
+        include = new Split(with, i + 1, fee + fees[i]);
+        include.fork();
+      }
+      new Split(cur, i + 1, fee).compute();
+      if (include != null) include.join();
+      return null;
+    }
+  }
+
+  // i claims no coin claimed by a transaction in s, which holds only
+  // earlier ones, and s holds all its prerequisites
+  private boolean fits(int i, long[] s) {
+    for (int j : conflicts[i])
+      if (has(s, j)) return false;
+    for (int j : needs[i])
+      if (!has(s, j)) return false;
+    return true;
+  }
+
+  private static boolean has(long[] s, int i) {
+    return (s[i >>> 6] & (1L << i)) != 0;
+  }
+
+  private static void set(long[] s, int i) {
+    s[i >>> 6] |= 1L << i;
+  }
+
+  private static void clear(long[] s, int i) {
+    s[i >>> 6] &= ~(1L << i);
+  }
+
+  private static int[] members(long[] s) {
+    int k = 0;
+    for (long w : s) k += Long.bitCount(w);
+    int[] res = new int[k];
+    k = 0;
+    for (int w = 0; w < s.length; w++)
+      for (long b = s[w]; b != 0; b &= b - 1)
+        res[k++] = (w << 6) + Long.numberOfTrailingZeros(b);
+    return res;
+  }
+}
@@ -2,6 +2,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
 
 public class MaxFeeTxHandler {
   UTXOPool pool;    // available outputs to claim by inputs from previous epochs
@@ -13,7 +14,11 @@ public class MaxFeeTxHandler {
   HashMap<Integer,ArrayList<Integer>> depends;
   HashMap<UTXO,Integer> createdBy;  // tx_i that created this output
   ArrayList<HashSet<UTXO>> coins;   // coins claimed by tx_i
-  ArrayList<Double> fees;           // tx fee for tx_i
+  long[] fees;                      // tx fee for tx_i, in base units
+
+  long budget = Long.MAX_VALUE;     // search time per epoch, ns
+  MaxFeeSolver.Result last;         // outcome of the last search
+  ForkJoinPool workers;             // parallel search, if set
   
   /**
    * Creates a transaction handler that maximizes transaction fees.
@@ -23,7 +28,28 @@ public class MaxFeeTxHandler {
   }
 
   /**
-   * @return fee for transaction, if negative it is invalid:
+   * Limits the search for the best subset to {@code millis} per epoch,
+   * after which the best subset found so far is used.
+   */
+  public void setTimeBudget(long millis) {
+    budget = millis == Long.MAX_VALUE ? Long.MAX_VALUE : millis * 1_000_000;
+  }
+
+  /**
+   * Searches on {@code workers}, or serially if null. Either finds a subset
+   * with the same total fee.
+   */
+  public void setParallel(ForkJoinPool workers) {
+    this.workers = workers;
+  }
+
+  /** @return true if the last epoch's subset is proven to maximize fees */
+  public boolean isOptimal() {
+    return last != null && last.optimal;
+  }
+
+  /**
+   * @return fee for transaction in base units, if negative it is invalid:
    * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
    * (2) the signatures on each input of {@code tx} are valid, 
    * (3) no UTXO is claimed multiple times by {@code tx},
@@ -31,9 +57,9 @@ public class MaxFeeTxHandler {
    * (5) the sum of {@code tx}s input values is greater than or equal to 
    *     the sum of its output values; and false otherwise.
    */
-  public double txFee(Transaction tx, int idx) {
+  public long txFee(Transaction tx, int idx) {
     Set<UTXO> seen = new HashSet<UTXO>();
-    double sumIn = 0, sumOut = 0;
+    long sumIn = 0, sumOut = 0;
     ArrayList<Integer> deps = new ArrayList<>();
 
     int i = 0;
@@ -48,20 +74,22 @@ public class MaxFeeTxHandler {
       // (2) valid signatures: owner of coin has signed this transaction
       Transaction.Output txout = pending.getTxOutput(coin);
       byte[] msg = tx.getRawDataToSign(i);
-      if (!Crypto.verifySignature(txout.address, msg, in.signature))
+      if (!Crypto.verifySignature(txout.getAddress(), msg, in.signature))
         return -1;
             
       // (3) unique coins being used in this transaction
       if (seen.contains(coin)) return -1;
       seen.add(coin);
-      sumIn += txout.value;
+      sumIn = Transaction.addUnits(sumIn, txout.getAmount());
+      if (sumIn < 0) return -1;         // overflow
 
       i += 1;
     }
     // (4) values >= 0
     for (Transaction.Output o : tx.getOutputs()) {
-      if (o.value < 0) return -1;
-      sumOut += o.value;
+      if (o.getAmount() < 0) return -1;
+      sumOut = Transaction.addUnits(sumOut, o.getAmount());
+      if (sumOut < 0) return -1;
     }
     // (5) sum(inputs) >= sum(outputs)
     if (sumIn - sumOut >= 0) depends.put(idx, deps);
@@ -78,7 +106,9 @@ public class MaxFeeTxHandler {
    * maximizes the sum over all transactions in the set:
    * (sum of input values - sum of output values). 
    * 
-   * Runtime O(2^n) from exhaustively checking potential subsets.
+   * Runtime O(2^n) in the worst case for n transactions linked by shared
+   * coins or dependencies, see {@link MaxFeeSolver}; unlinked clusters are
+   * searched separately. Bounded by the time budget, if one is set.
    * 
    * Note: greedy selection isn't maximal, and outputs created in the current
    * epoch can be consumed by other transactions from the same epoch.
@@ -86,13 +116,13 @@ public class MaxFeeTxHandler {
   public Transaction[] handleTxs(Transaction[] possibleTxs) {
     // Topographically sorted potential transactions
     ArrayList<Transaction> txs = validTxs(possibleTxs);
-    // backtrack to compute best set of transactions to maximize transaction fees
-    bestIdx = new ArrayList<>();
-    best = 0;
-    bt(0, 0, new ArrayList<>(), new HashSet<>(), txs);
+    // branch and bound for the set of transactions maximizing fees
+    ArrayList<ArrayList<Integer>> deps = new ArrayList<>();
+    for (int i = 0; i < txs.size(); i++) deps.add(depends.get(i));
+    last = MaxFeeSolver.solveByComponents(fees, coins, deps, budget, workers);
 
     ArrayList<Transaction> rs = new ArrayList<>();
-    for (int i : bestIdx) {
+    for (int i : last.chosen) {
       Transaction t = txs.get(i);
       rs.add(t);
 
@@ -119,8 +149,9 @@ public class MaxFeeTxHandler {
     createdBy = new HashMap<>();
     depends = new HashMap<>();
     coins = new ArrayList<>();
-    fees = new ArrayList<>();
+    fees = new long[possibleTxs.length];
     ArrayList<Transaction> txs = new ArrayList<>();
+    HashSet<Transaction> added = new HashSet<>();   // same as txs, for lookups
 
     // While any new transactions are added
     // (worst case O(n^2) when each transaction relies on previous)
@@ -128,8 +159,8 @@ public class MaxFeeTxHandler {
     while (!done) {
       done = true;
       for (Transaction t : possibleTxs) {
-        if (txs.contains(t)) continue;
-        double fee = txFee(t, /*idx=*/txs.size());
+        if (added.contains(t)) continue;
+        long fee = txFee(t, /*idx=*/txs.size());
         if (fee < 0) continue;
         done = false;
 
@@ -147,50 +178,12 @@ public class MaxFeeTxHandler {
           createdBy.put(utxo, txs.size());
           pending.addUTXO(new UTXO(h, j), t.getOutput(j));
         }
+        fees[txs.size()] = fee;
         txs.add(t);
+        added.add(t);
         coins.add(cs);
-        fees.add(fee);
       }
     }
     return txs;
   }
-
-  /// Backtracking: find maximal fee subset of proposed transactions
-  double best;
-  ArrayList<Integer> bestIdx;
-
-  // Compute best set of transactions to maximize the transaction fee,
-  // ie. fee = sumInputs - sumOutputs
-  // The result set can't consume the same coin more than once
-  private void bt(int i, double txFee, ArrayList<Integer> cur,
-                  Set<UTXO> used, ArrayList<Transaction> txs) {
-    if (i == txs.size()) {
-      if (txFee > best) {
-        best = txFee;
-        bestIdx = new ArrayList<Integer>(cur);
-      }
-      return;
-    }
-    // check all prereqs are in current subset
-    boolean hasDeps = true;
-    for (Integer j : depends.get(i)) {
-      if (cur.contains(j)) continue;
-      hasDeps = false;
-      break;
-    }
-    if (hasDeps) {
-      // try to use current transaction
-      int origSz = used.size(), sz = coins.get(i).size();
-      Set<UTXO> s = new HashSet<UTXO>(used);
-      s.addAll(coins.get(i));
-      // check if all were unique
-      if (s.size() - origSz == sz) {
-        cur.add(i);
-        bt(i+1, txFee + fees.get(i), cur, s, txs);
-        cur.remove(cur.size()-1);
-      }
-    }
-    // try without current transaction
-    bt(i+1, txFee, cur, used, txs);
-  }
 }
@@ -0,0 +1,246 @@
+import java.security.PublicKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * A {@link TxHandler} for a continuous feed of transactions instead of
+ * whole epochs. Transactions are accepted in the order they arrive, as by
+ * {@link TxHandler#handleTxs}, and accepted ones are published as they are
+ * applied.
+ *
+ * <p> Signatures are verified ahead of application, on a worker pool, by
+ * looking up each coin's owner among the starting pool and the outputs of
+ * earlier transactions in the feed. A single thread then applies
+ * transactions in order, checking coins and balances against the current
+ * pool; an input is only verified again if its coin's owner differs from
+ * the one verified against. At most {@code window} transactions are in
+ * flight, and a slow subscriber stalls application, which stalls intake.
+ */
+public class StreamingTxHandler implements Flow.Processor<Transaction, Transaction> {
+  /** default limit on transactions received but not yet applied */
+  public static final int DEFAULT_WINDOW = 1024;
+  /** marks the end of a queue passed to {@link #consume} */
+  public static final Transaction END = new Transaction();
+
+  private final UTXOPool start;                   // read-only, for verifiers
+  private final UTXOPool pool;                    // guarded by itself
+  // owners of outputs created in the feed, not yet spent or rejected
+  private final ConcurrentHashMap<UTXO, PublicKey> created =
+    new ConcurrentHashMap<>();
+  private final int window;
+  private final Semaphore inFlight;
+  private final Executor verifiers;
+  private final ExecutorService applier;
+  private final SubmissionPublisher<Transaction> out;
+
+  private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+  private boolean closed;                         // guarded by this
+  private volatile Flow.Subscription upstream;
+  private long accepted, rejected;                // guarded by pool
+
+  public StreamingTxHandler(UTXOPool utxoPool) {
+    this(utxoPool, DEFAULT_WINDOW, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param window     transactions received but not yet applied
+   * @param verifiers  where signatures are verified
+   */
+  public StreamingTxHandler(UTXOPool utxoPool, int window, Executor verifiers) {
+    start = new UTXOPool(utxoPool);
+    pool = new UTXOPool(utxoPool);
+    this.window = window;
+    inFlight = new Semaphore(window);
+    this.verifiers = verifiers;
+    applier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "scrooge-apply");
+        t.setDaemon(true);
+        return t;
+      });
+    out = new SubmissionPublisher<>();
+  }
+
+  /** Subscribes to the accepted transactions, in the order applied */
+  public void subscribe(Flow.Subscriber<? super Transaction> subscriber) {
+    out.subscribe(subscriber);
+  }
+
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    subscription.request(window);
+  }
+
+  public void onNext(Transaction tx) {
+    try {
+      submit(tx);
+    } catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void onError(Throwable t) {
+    synchronized (this) {
+      closed = true;
+    }
+    drained().whenComplete((v, x) -> {
+        out.closeExceptionally(t);
+        applier.shutdown();
+      });
+  }
+
+  public void onComplete() {
+    close();
+  }
+
+  /**
+   * Adds {@code tx}, a finalized transaction, to the feed, waiting while
+   * {@code window} transactions are in flight.
+   * @throws IllegalStateException if the feed is closed
+   */
+  public void submit(Transaction tx) throws InterruptedException {
+    inFlight.acquire();
+    synchronized (this) {
+      if (closed) {
+        inFlight.release();
+        throw new IllegalStateException("feed is closed");
+      }
+      // outputs are visible to later transactions' verifiers before this
+      // one is applied
+      byte[] h = tx.getHash();
+      for (int i = 0; h != null && i < tx.numOutputs(); i++) {
+        PublicKey k = tx.getOutput(i).getAddress();
+        if (k != null) created.put(new UTXO(h, i), k);
+      }
+      CompletableFuture<PublicKey[]> verified = CompletableFuture
+        .supplyAsync(() -> verify(tx), verifiers)
+        .exceptionally(x -> new PublicKey[tx.numInputs()]);
+      // a failed stage must not skip later ones, each releases its permit
+      tail = tail.handle((v, x) -> null).thenCombineAsync(verified, (v, owners) -> {
+          apply(tx, owners);
+          return null;
+        }, applier);
+    }
+  }
+
+  /**
+   * Takes transactions from {@code queue} until {@link #END}, then closes
+   * the feed.
+   */
+  public void consume(BlockingQueue<Transaction> queue) throws InterruptedException {
+    for (Transaction tx = queue.take(); tx != END; tx = queue.take())
+      submit(tx);
+    close();
+  }
+
+  /**
+   * Ends the feed; later submits are refused and subscribers complete once
+   * it is applied
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    drained().whenComplete((v, x) -> {
+        out.close();
+        applier.shutdown();
+      });
+  }
+
+  /** @return completes when every transaction submitted so far is applied */
+  public synchronized CompletableFuture<Void> drained() {
+    return tail;
+  }
+
+  /** @return a copy of the current pool */
+  public UTXOPool getUTXOPool() {
+    synchronized (pool) {
+      return new UTXOPool(pool);
+    }
+  }
+
+  public long acceptedCount() {
+    synchronized (pool) {
+      return accepted;
+    }
+  }
+
+  public long rejectedCount() {
+    synchronized (pool) {
+      return rejected;
+    }
+  }
+
+  // owner each input's signature was verified against, null if unverified
+  private PublicKey[] verify(Transaction tx) {
+    PublicKey[] owners = new PublicKey[tx.numInputs()];
+    for (int i = 0; i < owners.length; i++) {
+      Transaction.Input in = tx.getInput(i);
+      if (in.prevTxHash == null || in.signature == null) return owners;
+      PublicKey k = created.get(new UTXO(in.prevTxHash, in.outputIndex));
+      if (k == null) {
+        Transaction.Output op = start.getTxOutput(in.prevTxHash, in.outputIndex);
+        if (op == null) continue;
+        k = op.getAddress();
+      }
+      if (TxValidator.verifySignature(tx, i, k)) owners[i] = k;
+    }
+    return owners;
+  }
+
+  private void apply(Transaction tx, PublicKey[] owners) {
+    try {
+      boolean ok;
+      synchronized (pool) {
+        ok = tx.getHash() != null && isValid(tx, owners);
+        byte[] h = tx.getHash();
+        if (ok) {
+          for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            pool.removeUTXO(in.prevTxHash, in.outputIndex);
+            created.remove(new UTXO(in.prevTxHash, in.outputIndex));
+          }
+          for (int i = 0; i < tx.numOutputs(); i++)
+            pool.addUTXO(new UTXO(h, i), tx.getOutput(i));
+          accepted++;
+        } else {
+          for (int i = 0; h != null && i < tx.numOutputs(); i++)
+            created.remove(new UTXO(h, i));
+          rejected++;
+        }
+      }
+      if (ok) out.submit(tx);            // blocks while a subscriber is behind
+    } finally {
+      inFlight.release();
+      Flow.Subscription s = upstream;
+      if (s != null) s.request(1);
+    }
+  }
+
+  // valid against the pool, verifying only inputs whose owner wasn't
+  private boolean isValid(Transaction tx, PublicKey[] owners) {
+    try {
+      if (TxValidator.checkWithoutSignatures(tx, pool) != null) return false;
+      for (int i = 0; i < owners.length; i++) {
+        Transaction.Input in = tx.getInput(i);
+        PublicKey k = pool.getTxOutput(in.prevTxHash, in.outputIndex).getAddress();
+        // keys are interned, see AddressRegistry
+        if (k != owners[i] && !TxValidator.verifySignature(tx, i, k)) return false;
+      }
+      return true;
+    } catch (RuntimeException x) {
+      return false;                      // malformed
+    }
+  }
+}
@@ -1,8 +1,11 @@
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
 
 public class TxHandler {
   UTXOPool pool;                         // available outputs to claim by inputs
+  LedgerLog log;                         // accepted epochs, if set
+  private volatile CompletableFuture<Void> logged =
+    CompletableFuture.completedFuture(null);
     
   /**
    * Creates a public ledger whose current UTXOPool (collection of unspent
@@ -13,6 +16,23 @@ public class TxHandler {
     pool = new UTXOPool(utxoPool);
   }
 
+  /**
+   * Appends each epoch's accepted transactions to {@code log}; see
+   * {@link #logged} to wait until they are durable. Once the log is closed
+   * or has failed, {@link #handleTxs} throws without touching the pool.
+   */
+  public void setLedgerLog(LedgerLog log) {
+    this.log = log;
+  }
+
+  /**
+   * @return completes once the last epoch handled is durable, or
+   *         exceptionally if it couldn't be logged
+   */
+  public CompletableFuture<Void> logged() {
+    return logged;
+  }
+
   /**
    * @return true if:
    * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
@@ -23,37 +43,15 @@ public class TxHandler {
    *     the sum of its output values; and false otherwise.
    */
   public boolean isValidTx(Transaction tx) {
-    HashSet<UTXO> seen = new HashSet<>();
-    double sumOut = 0, sumIn = 0;
-
-    int i = 0;
-    for (Transaction.Input in : tx.getInputs()) {
-      UTXO coin = new UTXO(in.prevTxHash, in.outputIndex);
-
-      // (1) coin is in available pool
-      if (!pool.contains(coin)) return false;
-
-      // (2) valid signatures: owner of coin has signed this transaction
-      Transaction.Output txout = pool.getTxOutput(coin);
-      byte[] msg = tx.getRawDataToSign(i);
-      if (!Crypto.verifySignature(txout.address, msg, in.signature))
-        return false;
-            
-      // (3) unique coins being used in this transaction
-      if (seen.contains(coin)) return false;
-      seen.add(coin);
-      sumIn += txout.value;
-
-      i += 1;
-    }
+    return TxValidator.isValid(tx, pool);
+  }
 
-    // (4) values >= 0
-    for (Transaction.Output o : tx.getOutputs()) {
-      if (o.value < 0) return false;
-      sumOut += o.value;
-    }
-    // (5) input value must be at least output value
-    return sumIn >= sumOut;
+  /**
+   * Validates {@code tx} cheapest checks first, see {@link TxValidator}.
+   * @return the stage {@code tx} was rejected at, or null if it is valid
+   */
+  public TxValidator.Stage checkTx(Transaction tx) {
+    return TxValidator.check(tx, pool);
   }
 
   /**
@@ -61,23 +59,36 @@ public class TxHandler {
    * transactions, checking each transaction for correctness, returning a
    * mutually valid array of accepted transactions, and updating the current
    * UTXO pool as appropriate.
+   * @throws IllegalStateException if the ledger log can't take the epoch,
+   *         before the pool is changed
    */
   public Transaction[] handleTxs(Transaction[] possibleTxs) {
-    ArrayList<Transaction> txs = new ArrayList<>();
-    for (Transaction t : possibleTxs) {
-      if (!isValidTx(t)) continue;
-      txs.add(t);
+    // the epoch's slot in the log is held before the pool changes, so a
+    // concurrent close can't leave the pool ahead of the log
+    LedgerLog.Reservation slot = log == null ? null : log.reserve();
+    try {
+      ArrayList<Transaction> txs = new ArrayList<>();
+      for (Transaction t : possibleTxs) {
+        if (!isValidTx(t)) continue;
+        txs.add(t);
 
-      // remove used coins from available pool
-      for (Transaction.Input in : t.getInputs())
-        pool.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+        // remove used coins from available pool
+        for (int i = 0; i < t.numInputs(); i++) {
+          Transaction.Input in = t.getInput(i);
+          pool.removeUTXO(in.prevTxHash, in.outputIndex);
+        }
 
-      // add new coins resulting from transction
-      byte[] h = t.getHash();
-      for (int i = 0; i < t.numOutputs(); i++)
-        pool.addUTXO(new UTXO(h, i), t.getOutput(i));
+        // add new coins resulting from transction
+        byte[] h = t.getHash();
+        for (int i = 0; i < t.numOutputs(); i++)
+          pool.addUTXO(new UTXO(h, i), t.getOutput(i));
+      }
+      Transaction[] res = new Transaction[txs.size()];
+      txs.toArray(res);
+      if (slot != null) logged = slot.append(res);
+      return res;
+    } finally {
+      if (slot != null) slot.cancel();         // no-op once appended
     }
-    Transaction[] res = new Transaction[txs.size()];
-    return txs.toArray(res);
   }
 }
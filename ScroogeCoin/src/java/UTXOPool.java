@@ -9,6 +9,9 @@ public class UTXOPool {
    */
   private HashMap<UTXO, Transaction.Output> H;
 
+  /** per-thread lookup key so outpoint lookups don't allocate a UTXO */
+  private static final ThreadLocal<UTXO> probe = ThreadLocal.withInitial(UTXO::new);
+
   /** Creates a new empty UTXOPool */
   public UTXOPool() {
     H = new HashMap<UTXO, Transaction.Output>();
@@ -30,6 +33,13 @@ public class UTXOPool {
     H.remove(utxo);
   }
 
+  /** Removes the output {@code index} of transaction {@code txHash} */
+  public void removeUTXO(byte[] txHash, int index) {
+    UTXO key = probe.get().set(txHash, index);
+    H.remove(key);
+    key.set(null, 0);
+  }
+
   /**
    * @return the transaction output corresponding to UTXO {@code utxo}, or null
    *         if {@code utxo} is not in the pool.
@@ -38,6 +48,27 @@ public class UTXOPool {
     return H.get(ut);
   }
 
+  /**
+   * @return the transaction output {@code index} of transaction
+   *         {@code txHash}, or null if it is not in the pool. Does not
+   *         allocate.
+   */
+  public Transaction.Output getTxOutput(byte[] txHash, int index) {
+    UTXO key = probe.get().set(txHash, index);
+    Transaction.Output op = H.get(key);
+    key.set(null, 0);
+    return op;
+  }
+
+  /**
+   * @return the amount in base units of the output corresponding to
+   *         {@code ut}, or -1 if {@code ut} is not in the pool
+   */
+  public long getAmount(UTXO ut) {
+    Transaction.Output op = H.get(ut);
+    return op == null ? -1 : op.getAmount();
+  }
+
   /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
   public boolean contains(UTXO utxo) {
     return H.containsKey(utxo);
@@ -0,0 +1,93 @@
+// Allocation check for TxValidator. Validates one transaction repeatedly and
+// prints the bytes allocated per call, measured with the thread's allocation
+// counter:
+//
+//   checks      every stage but signatures, must not allocate at all
+//   signatures  the full check, compared with bare JDK verifies of the same
+//               inputs; the JDK's RSA verify allocates its own big integers
+//               and padding buffers on every call, which is all that is
+//               allowed here
+//
+// Exits with status 1 if either limit is exceeded.
+//
+// Usage: ValidatorBenchmark [inputs] [calls]
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+public class ValidatorBenchmark {
+  static final int WARMUP = 5_000;
+  static final long SLACK = 64;          // bytes per call for counter noise
+
+  public static void main(String[] args) throws Exception {
+    int inputs = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int calls = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+    com.sun.management.ThreadMXBean mx =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!mx.isThreadAllocatedMemorySupported())
+      throw new IllegalStateException("allocation counter not supported");
+    KeyPairGenerator g = KeyPairGenerator.getInstance("RSA");
+    g.initialize(2048);
+    KeyPair k = g.generateKeyPair();
+
+    Transaction root = new Transaction();
+    for (int i = 0; i < inputs; i++) root.addOutput(10, k.getPublic());
+    root.finalize();
+    UTXOPool pool = new UTXOPool();
+    for (int i = 0; i < inputs; i++)
+      pool.addUTXO(new UTXO(root.getHash(), i), root.getOutput(i));
+    Transaction tx = new Transaction();
+    for (int i = 0; i < inputs; i++) tx.addInput(root.getHash(), i);
+    tx.addOutput(10 * inputs - 1, k.getPublic());
+    for (int i = 0; i < inputs; i++)
+      tx.addSignature(sign(k, tx.getRawDataToSign(i)), i);
+    tx.finalize();
+    byte[][] msgs = new byte[inputs][];
+    for (int i = 0; i < inputs; i++) msgs[i] = tx.getRawDataToSign(i);
+    Signature bare = Signature.getInstance("SHA256withRSA");
+
+    long id = Thread.currentThread().getId();
+    for (int i = 0; i < WARMUP; i++) {
+      TxValidator.checkWithoutSignatures(tx, pool);
+      TxValidator.isValid(tx, pool);
+      verifyAll(bare, k, tx, msgs);
+    }
+    long b0 = mx.getThreadAllocatedBytes(id);
+    for (int i = 0; i < calls; i++)
+      if (TxValidator.checkWithoutSignatures(tx, pool) != null)
+        throw new IllegalStateException("rejected");
+    long b1 = mx.getThreadAllocatedBytes(id);
+    for (int i = 0; i < calls; i++)
+      if (!TxValidator.isValid(tx, pool)) throw new IllegalStateException("rejected");
+    long b2 = mx.getThreadAllocatedBytes(id);
+    for (int i = 0; i < calls; i++) verifyAll(bare, k, tx, msgs);
+    long b3 = mx.getThreadAllocatedBytes(id);
+
+    long checks = (b1 - b0) / calls, full = (b2 - b1) / calls, jdk = (b3 - b2) / calls;
+    System.out.printf("checks      %,8d bytes/call%n", checks);
+    System.out.printf("signatures  %,8d bytes/call, JDK verify alone %,d (%d inputs)%n",
+                      full, jdk, inputs);
+    boolean ok = checks <= SLACK && full <= jdk + SLACK;
+    System.out.println(ok ? "ok" : "FAIL: validator allocates beyond the JDK verify");
+    if (!ok) System.exit(1);
+  }
+
+  static void verifyAll(Signature s, KeyPair k, Transaction tx, byte[][] msgs)
+    throws GeneralSecurityException {
+    for (int i = 0; i < msgs.length; i++) {
+      s.initVerify(k.getPublic());
+      s.update(msgs[i]);
+      if (!s.verify(tx.getInput(i).signature)) throw new IllegalStateException("bad");
+    }
+  }
+
+  static byte[] sign(KeyPair k, byte[] msg) throws GeneralSecurityException {
+    Signature s = Signature.getInstance("SHA256withRSA");
+    s.initSign(k.getPrivate());
+    s.update(msg);
+    return s.sign();
+  }
+}